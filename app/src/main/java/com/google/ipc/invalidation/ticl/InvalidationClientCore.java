@@ -320,6 +320,11 @@ public abstract class InvalidationClientCore extends InternalBase
       protocolHandler.sendMessageToServer();
       return false;  // Don't reschedule.
     }
+
+    @Override
+    int getScheduleDelayMs(int initialDelayMs) {
+      return protocolHandler.getBatchingDelayMs(initialDelayMs);
+    }
   }
 
   /**
@@ -65,6 +65,7 @@ import com.google.ipc.invalidation.util.ProtoWrapper;
 import com.google.ipc.invalidation.util.ProtoWrapper.ValidationException;
 import com.google.ipc.invalidation.util.Smearer;
 import com.google.ipc.invalidation.util.TextBuilder;
+import com.google.ipc.invalidation.util.TypedUtil;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -104,6 +105,17 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
     /** Set of pending invalidation acks. */
     private final Set<InvalidationP> pendingAckedInvalidations = new HashSet<InvalidationP>();
 
+    /**
+     * Pending acks for restarted, known-version invalidations, keyed by object id. As described in
+     * {@link AckCache}, such an ack implicitly acknowledges the earlier invalidations for the same
+     * object, so only the one with the highest version has to be sent.
+     */
+    private final Map<ObjectIdP, InvalidationP> pendingRestartedAcks =
+        new HashMap<ObjectIdP, InvalidationP>();
+
+    /** Number of acks that were dropped because a pending ack already covers them. */
+    private int supersededAckCount = 0;
+
     /** Set of pending registration sub trees for registration sync. */
     private final Set<RegistrationSubtree> pendingRegSubtrees = new HashSet<RegistrationSubtree>();
 
@@ -129,7 +141,7 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
         pendingRegistrations.put(unregistration, RegistrationP.OpType.UNREGISTER);
       }
       for (InvalidationP ack : marshalledState.getAcknowledgement()) {
-        pendingAckedInvalidations.add(ack);
+        addAck(ack);
       }
       for (RegistrationSubtree subtree : marshalledState.getRegistrationSubtree()) {
         pendingRegSubtrees.add(subtree);
@@ -155,11 +167,32 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
       pendingRegistrations.put(oid, opType);
     }
 
-    /** Adds {@code ack} to the set of acknowledgements to be sent. */
+    /**
+     * Adds {@code ack} to the set of acknowledgements to be sent, unless a pending ack already
+     * covers it. Pending acks that {@code ack} covers are dropped.
+     */
     void addAck(InvalidationP ack) {
+      if (!ack.getIsTrickleRestart() || !ack.getIsKnownVersion()) {
+        pendingAckedInvalidations.add(ack);
+        return;
+      }
+      InvalidationP pendingAck = TypedUtil.mapGet(pendingRestartedAcks, ack.getObjectId());
+      if (pendingAck != null) {
+        ++supersededAckCount;
+        if (pendingAck.getVersion() >= ack.getVersion()) {
+          return;
+        }
+        pendingAckedInvalidations.remove(pendingAck);
+      }
+      pendingRestartedAcks.put(ack.getObjectId(), ack);
       pendingAckedInvalidations.add(ack);
     }
 
+    /** Returns the number of acks that were dropped because a pending ack covered them. */
+    int getSupersededAckCount() {
+      return supersededAckCount;
+    }
+
     /** Adds {@code subtree} to the set of registration subtrees to be sent. */
     void addRegSubtree(RegistrationSubtree subtree) {
       pendingRegSubtrees.add(subtree);
@@ -270,6 +303,7 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
       InvalidationMessage ackMessage =
           InvalidationMessage.create(new ArrayList<InvalidationP>(pendingAckedInvalidations));
       pendingAckedInvalidations.clear();
+      pendingRestartedAcks.clear();
       return ackMessage;
     }
 
@@ -396,6 +430,24 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
   /** A debug message id that is added to every message to the server. */
   private int messageId = 1;
 
+  /** Upper bound on the batching delay when it is extended to match the server latency. */
+  private static final int MAX_ADAPTIVE_BATCHING_DELAY_MS = 5 * 1000;
+
+  /** The time at which the last message was sent to the server, or -1 if none was sent. */
+  private long lastMessageSentTimeMs = -1;
+
+  /**
+   * The time at which the oldest message expecting a reply that was sent since the last message
+   * from the server was sent, or -1 if there is none. Used to estimate the server latency.
+   */
+  private long unansweredMessageSentTimeMs = -1;
+
+  /** Smoothed estimate of the time the server takes to respond, or -1 if unknown. */
+  private int smoothedServerLatencyMs = -1;
+
+  /** Total size of the messages sent to the server. */
+  private long sentMessageBytes = 0;
+
   // State specific to a client. If we want to support multiple clients, this could
   // be in a map or could be eliminated (e.g., no batching).
 
@@ -475,6 +527,49 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
     return nextMessageSendTimeMs;
   }
 
+  /** Returns the total size of the messages sent to the server. */
+  long getSentMessageBytesForTest() {
+    return sentMessageBytes;
+  }
+
+  /** Returns the number of acks that were not sent because a pending ack covered them. */
+  int getSupersededAckCountForTest() {
+    return batcher.getSupersededAckCount();
+  }
+
+  /**
+   * Returns the delay after which batched data should be sent to the server. While messages are
+   * sent to the server more often than it responds, e.g., when acking a stream of invalidations,
+   * the delay is extended so that at most one message is sent per estimated server round trip,
+   * letting more data go out in each message. Otherwise, {@code configuredDelayMs} is used.
+   */
+  int getBatchingDelayMs(int configuredDelayMs) {
+    Preconditions.checkState(internalScheduler.isRunningOnThread(), "Not on internal thread");
+    if ((smoothedServerLatencyMs <= configuredDelayMs) || (lastMessageSentTimeMs < 0)) {
+      return configuredDelayMs;
+    }
+    long nextRoundTripTimeMs = lastMessageSentTimeMs + smoothedServerLatencyMs;
+    long delayMs = Math.min(nextRoundTripTimeMs - internalScheduler.getCurrentTimeMs(),
+        MAX_ADAPTIVE_BATCHING_DELAY_MS);
+    return (int) Math.max(delayMs, configuredDelayMs);
+  }
+
+  /** Updates the server latency estimate on receiving a message from the server. */
+  private void updateServerLatency() {
+    if (unansweredMessageSentTimeMs < 0) {
+      return;
+    }
+    // The server may also have been slow to send an unrelated message: clamp the sample so that a
+    // single one cannot hold the batching delay at its maximum.
+    int latencyMs = (int) Math.min(
+        internalScheduler.getCurrentTimeMs() - unansweredMessageSentTimeMs,
+        MAX_ADAPTIVE_BATCHING_DELAY_MS);
+    unansweredMessageSentTimeMs = -1;
+    // Exponentially weighted moving average, as commonly used for round trip time estimates.
+    smoothedServerLatencyMs = (smoothedServerLatencyMs < 0)
+        ? latencyMs : (7 * smoothedServerLatencyMs + latencyMs) / 8;
+  }
+
   /**
    * Handles a message from the server. If the message can be processed (i.e., is valid, is
    * of the right version, and is not a silence message), returns a {@link ParsedMessage}
@@ -495,6 +590,7 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
       logger.warning("Incoming message is invalid: %s", Bytes.toLazyCompactString(incomingMessage));
       return null;
     }
+    updateServerLatency();
 
     // Check the version of the message.
     if (message.getHeader().getProtocolVersion().getVersion().getMajorVersion() !=
@@ -635,7 +731,15 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
 
     statistics.recordSentMessage(SentMessageType.TOTAL);
     logger.fine("Sending message to server: %s", message);
-    network.sendMessage(message.toByteArray());
+    byte[] messageBytes = message.toByteArray();
+    sentMessageBytes += messageBytes.length;
+    lastMessageSentTimeMs = internalScheduler.getCurrentTimeMs();
+    // Only messages the server replies to are timed: e.g., acks get no response, and the next
+    // message from the server may come long after them.
+    if ((unansweredMessageSentTimeMs < 0) && expectsReply(message)) {
+      unansweredMessageSentTimeMs = lastMessageSentTimeMs;
+    }
+    network.sendMessage(messageBytes);
 
     // Record that the message was sent. We're invoking the listener directly, rather than
     // scheduling a new work unit to do it. It would be safer to do a schedule, but that's hard to
@@ -644,6 +748,12 @@ class ProtocolHandler implements Marshallable<ProtocolHandlerState> {
     listener.handleMessageSent();
   }
 
+  /** Returns whether the server responds to {@code message}. */
+  private static boolean expectsReply(ClientToServerMessage message) {
+    return (message.getNullableInitializeMessage() != null)
+        || (message.getNullableRegistrationMessage() != null) || message.hasInfoMessage();
+  }
+
   /** Returns the header to include on a message to the server. */
   private ClientHeader createClientHeader() {
     Preconditions.checkState(internalScheduler.isRunningOnThread(), "Not on internal thread");
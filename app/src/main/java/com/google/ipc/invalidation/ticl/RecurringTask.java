@@ -225,7 +225,7 @@ public abstract class RecurringTask extends InternalBase
         delayMs = timeoutDelayMs + smearer.getSmearedDelay(initialDelayMs);
       }
     } else {
-      delayMs = smearer.getSmearedDelay(initialDelayMs);
+      delayMs = smearer.getSmearedDelay(getScheduleDelayMs(initialDelayMs));
     }
 
     logger.fine("[%s] Scheduling %s with a delay %s, Now = %s", debugReason, name, delayMs,
@@ -234,6 +234,14 @@ public abstract class RecurringTask extends InternalBase
     isScheduled = true;
   }
 
+  /**
+   * Returns the delay, before smearing, with which the task is scheduled when it is not retried.
+   * Subclasses may override this to adapt {@code initialDelayMs} to the current conditions.
+   */
+  int getScheduleDelayMs(int initialDelayMs) {
+    return initialDelayMs;
+  }
+
   /** For use only in the Android scheduler. */
   public NamedRunnable getRunnable() {
     return runnable;
@@ -21,15 +21,22 @@ import com.google.ipc.invalidation.common.ObjectIdDigestUtils;
 import com.google.ipc.invalidation.ticl.proto.ClientProtocol.ObjectIdP;
 import com.google.ipc.invalidation.util.Bytes;
 import com.google.ipc.invalidation.util.InternalBase;
+import com.google.ipc.invalidation.util.Preconditions;
 import com.google.ipc.invalidation.util.TextBuilder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
  * Simple, map-based implementation of {@link DigestStore}.
+ * <p>
+ * Registrations are kept sorted by the digest of their object id, so the registrations under a
+ * digest prefix form a contiguous range of the map. The digest over all registrations must match
+ * the one computed by the server, i.e., it is a hash over all the sorted object id digests. It
+ * cannot be updated incrementally, so it is only recomputed when it is requested after a change.
  *
  */
 class SimpleRegistrationStore extends InternalBase implements DigestStore<ObjectIdP> {
@@ -40,19 +47,21 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   /** The function used to compute digests of objects. */
   private final DigestFunction digestFunction;
 
-  /** The memoized digest of all objects in registrations. */
+  /**
+   * The memoized digest of all objects in registrations, or {@code null} if registrations changed
+   * since it was computed.
+   */
   private Bytes digest;
 
   SimpleRegistrationStore(DigestFunction digestFunction) {
     this.digestFunction = digestFunction;
-    recomputeDigest();
   }
 
   @Override
   public boolean add(ObjectIdP oid) {
     if (registrations.put(ObjectIdDigestUtils.getDigest(oid.getSource(),
         oid.getName().getByteArray(), digestFunction), oid) == null) {
-      recomputeDigest();
+      digest = null;
       return true;
     }
     return false;
@@ -69,8 +78,8 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
       }
     }
     if (!addedOids.isEmpty()) {
-      // Only recompute the digest if we made changes.
-      recomputeDigest();
+      // Only invalidate the digest if we made changes.
+      digest = null;
     }
     return addedOids;
   }
@@ -79,7 +88,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   public boolean remove(ObjectIdP oid) {
     if (registrations.remove(ObjectIdDigestUtils.getDigest(oid.getSource(),
         oid.getName().getByteArray(), digestFunction)) != null) {
-      recomputeDigest();
+      digest = null;
       return true;
     }
     return false;
@@ -95,8 +104,8 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
       }
     }
     if (!removedOids.isEmpty()) {
-      // Only recompute the digest if we made changes.
-      recomputeDigest();
+      // Only invalidate the digest if we made changes.
+      digest = null;
     }
     return removedOids;
   }
@@ -105,7 +114,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
   public Collection<ObjectIdP> removeAll() {
     Collection<ObjectIdP> result = new ArrayList<ObjectIdP>(registrations.values());
     registrations.clear();
-    recomputeDigest();
+    digest = null;
     return result;
   }
 
@@ -122,18 +131,43 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
 
   @Override
   public byte[] getDigest() {
-    return digest.getByteArray();
+    return getMemoizedDigest().getByteArray();
   }
 
   @Override
   public Collection<ObjectIdP> getElements(byte[] oidDigestPrefix, int prefixLen) {
-    // We always return all the registrations and let the Ticl sort it out.
-    return registrations.values();
+    Preconditions.checkArgument(prefixLen >= 0 && prefixLen <= oidDigestPrefix.length * 8,
+        "Invalid prefix length");
+    if (prefixLen == 0) {
+      return registrations.values();
+    }
+
+    // All digests starting with the prefix are at least the prefix padded with 0 bits, and less
+    // than the prefix incremented by one at its last bit.
+    int numBytes = (prefixLen + 7) / 8;
+    int unusedBits = numBytes * 8 - prefixLen;
+    byte[] lowerBound = Arrays.copyOf(oidDigestPrefix, numBytes);
+    lowerBound[numBytes - 1] &= (byte) (0xff << unusedBits);
+    byte[] upperBound = lowerBound.clone();
+    int carry = 1 << unusedBits;
+    for (int i = numBytes - 1; (i >= 0) && (carry != 0); i--) {
+      int value = (upperBound[i] & 0xff) + carry;
+      upperBound[i] = (byte) value;
+      carry = value >> 8;
+    }
+    if (carry != 0) {
+      // The prefix consists of 1 bits only, so there is no upper bound.
+      return registrations.tailMap(new Bytes(lowerBound)).values();
+    }
+    return registrations.subMap(new Bytes(lowerBound), new Bytes(upperBound)).values();
   }
 
-  /** Recomputes the digests over all objects and sets {@code this.digest}. */
-  private void recomputeDigest() {
-    this.digest = ObjectIdDigestUtils.getDigest(registrations.keySet(), digestFunction);
+  /** Returns the digest over all objects, recomputing it if registrations changed. */
+  private Bytes getMemoizedDigest() {
+    if (digest == null) {
+      digest = ObjectIdDigestUtils.getDigest(registrations.keySet(), digestFunction);
+    }
+    return digest;
   }
 
   @Override
@@ -142,7 +176,7 @@ class SimpleRegistrationStore extends InternalBase implements DigestStore<Object
         .append("<SimpleRegistrationStore: registrations=")
         .append(registrations.values())
         .append(", digest=")
-        .append(digest)
+        .append(getMemoizedDigest())
         .append(">");
   }
 }
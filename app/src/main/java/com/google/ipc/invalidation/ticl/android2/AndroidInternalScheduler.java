@@ -49,6 +49,11 @@ import java.util.TreeMap;
  * the task to run; when it is received, this class looks up the appropriate recurring task
  * instance and runs it.
  * <p>
+ * To save wakeups, tasks that are due shortly after one another share an alarm: the alarm for the
+ * soonest task is deferred to the latest task due within {@link #WAKEUP_BATCHING_WINDOW_MS} of
+ * it, and all of them run on that wakeup. Tasks are thus never run early, but may be run up to
+ * that window late.
+ * <p>
  * Note that this class only supports scheduling recurring tasks, not ordinary runnables. In
  * order for it to be used, the application must declare the AlarmReceiver of the scheduler
  * in the application's manifest file; see the implementation comment in AlarmReceiver for
@@ -90,6 +95,9 @@ public final class AndroidInternalScheduler implements Scheduler {
   private static final String TESTABLE_CLIENT_CLASSNAME_FOR_TEST =
       "com.google.ipc.invalidation.ticl.android2.TestableTiclService$TestableClient";
 
+  /** Maximum time by which a task may be deferred to share a wakeup with a later task. */
+  static final long WAKEUP_BATCHING_WINDOW_MS = 1000;
+
   /**
    * {@link RecurringTask}-created runnables that can be executed by this instance, by their names.
    */
@@ -109,6 +117,12 @@ public final class AndroidInternalScheduler implements Scheduler {
   /** Id of the Ticl for which this scheduler will process events. */
   private long ticlId = -1;
 
+  /** Time for which the alarm is currently set, or -1 if it is not known to be set. */
+  private long alarmTimeMs = -1;
+
+  /** Number of task runs that shared a wakeup with another task instead of needing their own. */
+  private int wakeupsAvoided = 0;
+
   AndroidInternalScheduler(Context context, AndroidClock clock) {
     this.context = Preconditions.checkNotNull(context);
     this.clock = Preconditions.checkNotNull(clock);
@@ -129,12 +143,28 @@ public final class AndroidInternalScheduler implements Scheduler {
     // that our AlarmReceiver will not be able to receive events from any other broadcaster (which
     // it would be if we used action-based targeting).
     String taskName = ((NamedRunnable) runnable).getName();
-    long executeMs = clock.nowMs() + delayMs;
+    addScheduledTask(clock.nowMs() + delayMs, taskName);
+    ensureIntentScheduledForSoonestTask();
+  }
+
+  /**
+   * Adds a task to {@link #scheduledTasks}. Tasks are keyed by their execution time, so a task
+   * colliding with another one is moved to the next free millisecond rather than replacing it.
+   */
+  private void addScheduledTask(long executeMs, String taskName) {
     while (scheduledTasks.containsKey(executeMs)) {
       ++executeMs;
     }
     scheduledTasks.put(executeMs, taskName);
-    ensureIntentScheduledForSoonestTask();
+  }
+
+  /**
+   * Returns the time at which to wake up for the soonest task: the time of the latest task due
+   * within {@link #WAKEUP_BATCHING_WINDOW_MS} of it, so they all run on the same wakeup.
+   */
+  private long getNextWakeupTimeMs() {
+    long soonestTaskTimeMs = scheduledTasks.firstKey();
+    return scheduledTasks.floorKey(soonestTaskTimeMs + WAKEUP_BATCHING_WINDOW_MS);
   }
 
   /**
@@ -143,7 +173,11 @@ public final class AndroidInternalScheduler implements Scheduler {
    */
   private void ensureIntentScheduledForSoonestTask() {
     Preconditions.checkState(!scheduledTasks.isEmpty());
-    Map.Entry<Long, String> soonestTask = scheduledTasks.firstEntry();
+    long wakeupTimeMs = getNextWakeupTimeMs();
+    if (wakeupTimeMs == alarmTimeMs) {
+      // The alarm is already set for the right time.
+      return;
+    }
     Intent eventIntent = ProtocolIntents.newImplicitSchedulerIntent();
     eventIntent.setClass(context, AlarmReceiver.class);
 
@@ -154,7 +188,8 @@ public final class AndroidInternalScheduler implements Scheduler {
     // Schedule the pending intent after the appropriate delay.
     AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
     try {
-      alarmManager.set(AlarmManager.RTC, soonestTask.getKey(), sender);
+      alarmManager.set(AlarmManager.RTC, wakeupTimeMs, sender);
+      alarmTimeMs = wakeupTimeMs;
     } catch (SecurityException exception) {
       logger.warning("Unable to schedule delayed registration: %s", exception);
     }
@@ -179,6 +214,10 @@ public final class AndroidInternalScheduler implements Scheduler {
 
   /** Runs all tasks that are ready to run. */
   void handleImplicitSchedulerEvent() {
+    // The alarm has fired, or the service was started for another reason; in both cases, it is
+    // re-armed below if needed.
+    alarmTimeMs = -1;
+    int numTasksRun = 0;
     try {
       while (!scheduledTasks.isEmpty() && (scheduledTasks.firstKey() <= clock.nowMs())) {
         Map.Entry<Long, String> scheduledTask = scheduledTasks.pollFirstEntry();
@@ -188,8 +227,12 @@ public final class AndroidInternalScheduler implements Scheduler {
           continue;
         }
         runnable.run();
+        ++numTasksRun;
       }
     } finally {
+      if (numTasksRun > 1) {
+        wakeupsAvoided += numTasksRun - 1;
+      }
       if (!scheduledTasks.isEmpty()) {
         ensureIntentScheduledForSoonestTask();
       }
@@ -241,12 +284,18 @@ public final class AndroidInternalScheduler implements Scheduler {
     return clock.nowMs();
   }
 
+  /** Returns the number of task runs that did not need a wakeup of their own. */
+  int getWakeupsAvoidedForTest() {
+    return wakeupsAvoided;
+  }
+
   /** Removes the registered tasks. */
   void reset() {
     logger.fine("Clearing registered tasks on %s", this);
     registeredTasks.clear();
     scheduledTasks.clear();
     ticlId = -1;
+    alarmTimeMs = -1;
   }
 
   /**
@@ -263,8 +312,7 @@ public final class AndroidInternalScheduler implements Scheduler {
 
     // Add tasks from persistent storage.
     for (ScheduledTask task : tasks) {
-      long executeTimeMs = task.getExecuteTimeMs();
-      scheduledTasks.put(executeTimeMs, task.getEventName());
+      addScheduledTask(task.getExecuteTimeMs(), task.getEventName());
     }
   }
 
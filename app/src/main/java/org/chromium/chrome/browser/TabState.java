@@ -21,6 +21,8 @@ import org.chromium.chrome.browser.util.ColorUtils;
 import org.chromium.content_public.browser.WebContents;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -29,9 +31,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.CRC32;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -46,6 +50,9 @@ public class TabState {
     public static final String SAVED_TAB_STATE_FILE_PREFIX = "tab";
     public static final String SAVED_TAB_STATE_FILE_PREFIX_INCOGNITO = "cryptonito";
 
+    /** Suffix of the file a TabState is written to before it replaces the previous file. */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
     /**
      * Version number of the format used to save the WebContents navigation history, as returned by
      * nativeGetContentsStateAsByteBuffer(). Version labels:
@@ -252,14 +259,42 @@ public class TabState {
      * @return TabState that has been restored, or null if it failed.
      */
     private static TabState readState(FileInputStream input, boolean encrypted) throws IOException {
-        DataInputStream stream = null;
+        return readState(createInputStream(input, encrypted), input, encrypted);
+    }
+
+    /**
+     * Restores an encrypted TabState from the contents of its file. This allows the file to be read
+     * from disk separately from being decrypted.
+     * @param data The contents of an encrypted TabState file.
+     * @return TabState that has been restored, or null if it failed.
+     */
+    public static TabState readEncryptedState(byte[] data) {
+        try {
+            return readState(createInputStream(new ByteArrayInputStream(data), true), null, true);
+        } catch (IOException exception) {
+            Log.e(TAG, "Failed to restore tab state.", exception);
+            return null;
+        }
+    }
+
+    private static DataInputStream createInputStream(InputStream input, boolean encrypted) {
         if (encrypted) {
             Cipher cipher = CipherFactory.getInstance().getCipher(Cipher.DECRYPT_MODE);
-            if (cipher != null) {
-                stream = new DataInputStream(new CipherInputStream(input, cipher));
-            }
+            if (cipher != null) return new DataInputStream(new CipherInputStream(input, cipher));
         }
-        if (stream == null) stream = new DataInputStream(input);
+        return new DataInputStream(input);
+    }
+
+    /**
+     * Reads the TabState fields from a stream.
+     * @param stream The stream to read the fields from, decrypting them if needed.
+     * @param input The unencrypted file backing {@code stream}, used to mmap the contents state.
+     *              May be null if the state is encrypted.
+     * @param encrypted Whether the file is encrypted or not.
+     * @return TabState that has been restored, or null if it failed.
+     */
+    private static TabState readState(DataInputStream stream, @Nullable FileInputStream input,
+            boolean encrypted) throws IOException {
         try {
             if (encrypted && stream.readLong() != KEY_CHECKER) {
                 // Got the wrong key, skip the file
@@ -276,6 +311,7 @@ public class TabState {
                 tabState.contentsState.buffer().put(state);
             } else {
                 // If not, we can mmap the file directly, saving time and copies into the java heap.
+                assert input != null;
                 FileChannel channel = input.getChannel();
                 tabState.contentsState = new WebContentsState(
                         channel.map(MapMode.READ_ONLY, channel.position(), size));
@@ -361,22 +397,40 @@ public class TabState {
 
     /**
      * Writes the TabState to disk. This method may be called on either the UI or background thread.
+     * The state is written to a temporary file first, which then replaces {@code file}, so that a
+     * partially written file is never left behind.
      * @param file File to write the tab's state to.
      * @param state State object obtained from from {@link Tab#getState()}.
      * @param encrypted Whether or not the TabState should be encrypted.
+     * @return The number of bytes written, before encryption.
      */
-    public static void saveState(File file, TabState state, boolean encrypted) {
-        if (state == null || state.contentsState == null) return;
+    public static int saveState(File file, TabState state, boolean encrypted) {
+        if (state == null || state.contentsState == null) return 0;
 
         // Create the byte array from contentsState before opening the FileOutputStream, in case
         // contentsState.buffer is an instance of MappedByteBuffer that is mapped to
         // the tab state file.
-        byte[] contentsStateBytes = getContentStateByteArray(state.contentsState.buffer());
+        return saveState(file, state, encrypted, getContentsStateBytes(state));
+    }
 
+    /**
+     * Same as {@link #saveState(File, TabState, boolean)}, with the contents state already copied
+     * by {@link #getContentsStateBytes}.
+     * @param file File to write the tab's state to.
+     * @param state State object obtained from from {@link Tab#getState()}.
+     * @param encrypted Whether or not the TabState should be encrypted.
+     * @param contentsStateBytes The contents state of {@code state}.
+     * @return The number of bytes written, before encryption, or 0 if the file was not replaced.
+     */
+    public static int saveState(
+            File file, TabState state, boolean encrypted, byte[] contentsStateBytes) {
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
         DataOutputStream dataOutputStream = null;
         FileOutputStream fileOutputStream = null;
+        boolean success = false;
+        int bytesWritten = 0;
         try {
-            fileOutputStream = new FileOutputStream(file);
+            fileOutputStream = new FileOutputStream(tempFile);
 
             if (encrypted) {
                 Cipher cipher = CipherFactory.getInstance().getCipher(Cipher.ENCRYPT_MODE);
@@ -388,7 +442,7 @@ public class TabState {
                     // meaningless. Therefore, do not save anything. This will cause users
                     // to lose Incognito state in certain cases. That is annoying, but is
                     // better than failing to provide the guarantee of Incognito Mode.
-                    return;
+                    return 0;
                 }
             } else {
                 dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
@@ -397,14 +451,10 @@ public class TabState {
             dataOutputStream.writeLong(state.timestampMillis);
             dataOutputStream.writeInt(contentsStateBytes.length);
             dataOutputStream.write(contentsStateBytes);
-            dataOutputStream.writeInt(state.parentId);
-            dataOutputStream.writeUTF(state.openerAppId != null ? state.openerAppId : "");
-            dataOutputStream.writeInt(state.contentsState.version());
-            dataOutputStream.writeLong(-1); // Obsolete sync ID.
-            dataOutputStream.writeBoolean(state.shouldPreserve);
-            dataOutputStream.writeInt(state.themeColor);
-            dataOutputStream.writeInt(
-                    state.tabLaunchTypeAtCreation != null ? state.tabLaunchTypeAtCreation : -1);
+            dataOutputStream.write(getMetadataBytes(state));
+            dataOutputStream.close();
+            bytesWritten = dataOutputStream.size();
+            success = true;
         } catch (FileNotFoundException e) {
             Log.w(TAG, "FileNotFoundException while attempting to save TabState.");
         } catch (IOException e) {
@@ -412,7 +462,52 @@ public class TabState {
         } finally {
             StreamUtil.closeQuietly(dataOutputStream);
             StreamUtil.closeQuietly(fileOutputStream);
+            if (success && !tempFile.renameTo(file)) {
+                Log.w(TAG, "Failed to replace TabState file: " + file);
+                success = false;
+            }
+            if (!success && tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Failed to delete temporary TabState file: " + tempFile);
+            }
         }
+        return success ? bytesWritten : 0;
+    }
+
+    /**
+     * Serializes the fields that follow the contents state in a TabState file.
+     * @param state The TabState to serialize.
+     * @return The serialized fields.
+     */
+    public static byte[] getMetadataBytes(TabState state) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(output);
+        stream.writeInt(state.parentId);
+        stream.writeUTF(state.openerAppId != null ? state.openerAppId : "");
+        stream.writeInt(state.contentsState.version());
+        stream.writeLong(-1); // Obsolete sync ID.
+        stream.writeBoolean(state.shouldPreserve);
+        stream.writeInt(state.themeColor);
+        stream.writeInt(state.tabLaunchTypeAtCreation != null ? state.tabLaunchTypeAtCreation : -1);
+        stream.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * @param state The TabState whose contents state to copy. Its contents state must not be null.
+     * @return A copy of the navigation history of the TabState.
+     */
+    public static byte[] getContentsStateBytes(TabState state) {
+        return getContentStateByteArray(state.contentsState.buffer());
+    }
+
+    /**
+     * @param contentsStateBytes A contents state, see {@link #getContentsStateBytes}.
+     * @return A checksum of the navigation history.
+     */
+    public static long getContentsStateChecksum(byte[] contentsStateBytes) {
+        CRC32 checksum = new CRC32();
+        checksum.update(contentsStateBytes);
+        return checksum.getValue();
     }
 
     /**
@@ -150,6 +150,8 @@ public class OriginVerifier {
         mPackageName = packageName;
         mSignatureFingerprint = getCertificateSHA256FingerprintForPackage(mPackageName);
         mRelation = relation;
+        // Read the saved verifications before the first check, which happens on the UI thread.
+        VerificationResultStore.loadInBackground();
     }
 
     /**
@@ -4,50 +4,133 @@
 
 package org.chromium.chrome.browser.browserservices;
 
-import org.chromium.base.StrictModeContext;
+import org.chromium.base.ContextUtils;
 import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.chrome.browser.preferences.ChromePreferenceManager;
+import org.chromium.chrome.browser.util.SnapshotStateStore;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Stores the results of Digital Asset Link verifications performed by {@link OriginVerifier}.
  *
+ * The verified relationships are kept in memory, so checking them does not read the preferences.
+ * See {@link SnapshotStateStore} for how they are persisted.
+ *
  * Lifecycle: This is a utility class with static methods, it won't be instantiated.
  * Thread safety: Methods can be called on any thread.
  */
 public class VerificationResultStore {
+    /** The name of the snapshot file, in the app's files directory. */
+    private static final String FILE_NAME = "verified_digital_asset_links";
+
+    private static Store sStore;
+
+    /** The verified relationships, imported from {@link ChromePreferenceManager} on first use. */
+    static class Store extends SnapshotStateStore {
+        private static final int MAGIC = 0x56524c53;
+        private static final int VERSION = 1;
+
+        // Guarded by |this|.
+        private final Set<String> mRelationships = new HashSet<>();
+
+        Store(File file) {
+            super(file, MAGIC, VERSION);
+        }
+
+        synchronized boolean contains(String relationship) {
+            ensureLoadedLocked();
+            return mRelationships.contains(relationship);
+        }
+
+        synchronized void add(String relationship) {
+            ensureLoadedLocked();
+            if (mRelationships.add(relationship)) scheduleWriteLocked();
+        }
+
+        synchronized void remove(String relationship) {
+            ensureLoadedLocked();
+            if (mRelationships.remove(relationship)) scheduleWriteLocked();
+        }
+
+        synchronized void clear() {
+            ensureLoadedLocked();
+            if (mRelationships.isEmpty()) return;
+            mRelationships.clear();
+            scheduleWriteLocked();
+        }
+
+        @Override
+        protected void readSnapshotLocked(byte[] data, DataInputStream input)
+                throws IOException {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) mRelationships.add(input.readUTF());
+        }
+
+        @Override
+        protected void writeSnapshotLocked(DataOutputStream output) throws IOException {
+            output.writeInt(mRelationships.size());
+            for (String relationship : mRelationships) output.writeUTF(relationship);
+        }
+
+        @Override
+        protected void clearStateLocked() {
+            mRelationships.clear();
+        }
+
+        @Override
+        protected boolean importLegacyStateLocked() {
+            mRelationships.addAll(
+                    ChromePreferenceManager.getInstance().getVerifiedDigitalAssetLinks());
+            return !mRelationships.isEmpty();
+        }
+
+        @Override
+        protected void clearLegacyState() {
+            ChromePreferenceManager.getInstance().setVerifiedDigitalAssetLinks(
+                    Collections.emptySet());
+        }
+    }
+
+    /**
+     * Reads the verified relationships in the background, so that the first verification does
+     * not have to.
+     */
+    public static void loadInBackground() {
+        getStore().loadInBackground();
+    }
+
     /* package */ static void addRelationship(Relationship relationship) {
-        Set<String> savedLinks = getRelationships();
-        savedLinks.add(relationship.toString());
-        setRelationships(savedLinks);
+        getStore().add(relationship.toString());
     }
 
     /* package */ static void removeRelationship(Relationship relationship) {
-        Set<String> savedLinks = getRelationships();
-        savedLinks.remove(relationship.toString());
-        setRelationships(savedLinks);
+        getStore().remove(relationship.toString());
     }
 
     /* package */ static boolean isRelationshipSaved(Relationship relationship) {
-        return getRelationships().contains(relationship.toString());
+        return getStore().contains(relationship.toString());
     }
 
     /* package */ static void clearStoredRelationships() {
         ThreadUtils.assertOnUiThread();
-        setRelationships(Collections.emptySet());
+        getStore().clear();
     }
 
-    private static Set<String> getRelationships() {
-        // In case we're called on the UI thread and Preferences haven't been read before.
-        try (StrictModeContext unused = StrictModeContext.allowDiskReads()) {
-            return ChromePreferenceManager.getInstance().getVerifiedDigitalAssetLinks();
+    @VisibleForTesting
+    static synchronized Store getStore() {
+        if (sStore == null) {
+            sStore = new Store(new File(ContextUtils.getApplicationContext().getFilesDir(),
+                    FILE_NAME));
         }
-    }
-
-    private static void setRelationships(Set<String> relationships) {
-        ChromePreferenceManager.getInstance().setVerifiedDigitalAssetLinks(relationships);
+        return sStore;
     }
 
     private VerificationResultStore() {}
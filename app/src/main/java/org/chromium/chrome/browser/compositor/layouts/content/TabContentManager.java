@@ -11,8 +11,12 @@ import android.view.View;
 import android.view.ViewGroup.MarginLayoutParams;
 
 import org.chromium.base.CommandLine;
+import org.chromium.base.MemoryPressureListener;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.base.annotations.CalledByNative;
 import org.chromium.base.annotations.JNINamespace;
+import org.chromium.base.memory.MemoryPressureCallback;
+import org.chromium.base.metrics.RecordHistogram;
 import org.chromium.chrome.R;
 import org.chromium.chrome.browser.ChromeSwitches;
 import org.chromium.chrome.browser.native_page.NativePage;
@@ -21,6 +25,7 @@ import org.chromium.ui.base.DeviceFormFactor;
 import org.chromium.ui.display.DisplayAndroid;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -29,17 +34,35 @@ import java.util.List;
  */
 @JNINamespace("android")
 public class TabContentManager {
+    /**
+     * Number of ranks around the end of the full resolution priority list in which tabs that are
+     * already prioritized keep their spot over tabs that just moved up. This avoids churning
+     * thumbnails back and forth when the ranking of tabs at the boundary flickers.
+     */
+    private static final int PRIORITY_HYSTERESIS = 2;
+
     private final float mThumbnailScale;
     private final int mFullResThumbnailsMaxSize;
     private final ContentOffsetProvider mContentOffsetProvider;
     private int[] mPriorityTabIds;
+    private int mPriorityTabIdsCount;
+    private int mPrimaryTabId = -1;
+    private int[] mNextPriorityTabIds;
     private long mNativeTabContentManager;
 
+    private int mShownWithFullThumbnailCount;
+    private int mShownWithoutFullThumbnailCount;
+
     private final ArrayList<ThumbnailChangeListener> mListeners =
             new ArrayList<ThumbnailChangeListener>();
 
     private boolean mSnapshotsEnabled;
 
+    // Bitmaps used to read back native pages, which native copies before they are released.
+    private final ThumbnailBitmapPool mBitmapPool =
+            new ThumbnailBitmapPool(ThumbnailBitmapPool.DEFAULT_MAX_BYTES);
+    private final MemoryPressureCallback mMemoryPressureCallback = mBitmapPool::onMemoryPressure;
+
     /**
      * The Java interface for listening to thumbnail changes.
      */
@@ -113,10 +136,13 @@ public class TabContentManager {
         mThumbnailScale = thumbnailScale;
 
         mPriorityTabIds = new int[mFullResThumbnailsMaxSize];
+        mNextPriorityTabIds = new int[mFullResThumbnailsMaxSize];
 
         mNativeTabContentManager = nativeInit(defaultCacheSize,
                 approximationCacheSize, compressionQueueMaxSize, writeQueueMaxSize,
                 useApproximationThumbnails);
+
+        MemoryPressureListener.addCallback(mMemoryPressureCallback);
     }
 
     /**
@@ -127,6 +153,8 @@ public class TabContentManager {
             nativeDestroy(mNativeTabContentManager);
             mNativeTabContentManager = 0;
         }
+        MemoryPressureListener.removeCallback(mMemoryPressureCallback);
+        mBitmapPool.clear();
     }
 
     @CalledByNative
@@ -180,15 +208,11 @@ public class TabContentManager {
             topMargin = params.topMargin;
         }
 
-        try {
-            bitmap = Bitmap.createBitmap(
-                    (int) ((viewToDraw.getWidth() + leftMargin) * mThumbnailScale),
-                    (int) ((viewToDraw.getHeight() + topMargin - overlayTranslateY)
-                            * mThumbnailScale),
-                    Bitmap.Config.ARGB_8888);
-        } catch (OutOfMemoryError ex) {
-            return null;
-        }
+        bitmap = mBitmapPool.acquire(
+                (int) ((viewToDraw.getWidth() + leftMargin) * mThumbnailScale),
+                (int) ((viewToDraw.getHeight() + topMargin - overlayTranslateY) * mThumbnailScale),
+                Bitmap.Config.ARGB_8888);
+        if (bitmap == null) return null;
 
         Canvas c = new Canvas(bitmap);
         c.scale(scale, scale);
@@ -223,7 +247,7 @@ public class TabContentManager {
                 if (nativePageBitmap == null) return;
                 nativeCacheTabWithBitmap(mNativeTabContentManager, tab, nativePageBitmap,
                         mThumbnailScale);
-                nativePageBitmap.recycle();
+                mBitmapPool.release(nativePageBitmap);
             } else {
                 if (tab.getWebContents() == null) return;
                 nativeCacheTab(mNativeTabContentManager, tab, mThumbnailScale);
@@ -231,6 +255,15 @@ public class TabContentManager {
         }
     }
 
+    /**
+     * Records how much memory was allocated to read back native pages since the last call. Called
+     * each time the tab switcher is opened.
+     */
+    public void recordNativePageBitmapAllocations() {
+        RecordHistogram.recordMemoryKBHistogram("Android.TabSwitcher.NativePageBitmapAllocatedKB",
+                (int) (mBitmapPool.takeAllocatedBytes() / 1024));
+    }
+
     /**
      * Invalidate a thumbnail if the content of the tab has been changed.
      * @param tabId The id of the {@link Tab} thumbnail to check.
@@ -257,20 +290,85 @@ public class TabContentManager {
      * @param priority The list of tab ids ordered in terms of priority.
      */
     public void updateVisibleIds(List<Integer> priority, int primaryTabId) {
-        if (mNativeTabContentManager != 0) {
-            int idsSize = Math.min(mFullResThumbnailsMaxSize, priority.size());
+        updateVisibleIds(priority, primaryTabId, priority.size());
+    }
 
-            if (idsSize != mPriorityTabIds.length) {
-                mPriorityTabIds = new int[idsSize];
-            }
+    /**
+     * Update the priority-ordered list of visible tabs. Tabs past |pinnedCount| that already have
+     * a full resolution slot keep it while they stay ranked close to the end of the list.
+     * @param priority     The list of tab ids ordered in terms of priority.
+     * @param primaryTabId The id of the tab filling the screen, or -1.
+     * @param pinnedCount  The number of leading tabs that must be kept in priority order, e.g.
+     *                     because they are visible.
+     */
+    public void updateVisibleIds(List<Integer> priority, int primaryTabId, int pinnedCount) {
+        if (mNativeTabContentManager == 0) return;
+
+        int idsSize = Math.min(mFullResThumbnailsMaxSize, priority.size());
+        if (mNextPriorityTabIds.length != idsSize) mNextPriorityTabIds = new int[idsSize];
+
+        // Fill the list in order up to the hysteresis band, then prefer the tabs in the band that
+        // were prioritized before over the ones that just entered it.
+        int stableCount = Math.min(idsSize, Math.max(pinnedCount, idsSize - PRIORITY_HYSTERESIS));
+        int bandEnd = Math.min(priority.size(), idsSize + PRIORITY_HYSTERESIS);
+        int count = 0;
+        for (int i = 0; i < stableCount; i++) mNextPriorityTabIds[count++] = priority.get(i);
+        for (int i = stableCount; i < bandEnd && count < idsSize; i++) {
+            if (isPrioritized(priority.get(i))) mNextPriorityTabIds[count++] = priority.get(i);
+        }
+        for (int i = stableCount; i < bandEnd && count < idsSize; i++) {
+            if (!isPrioritized(priority.get(i))) mNextPriorityTabIds[count++] = priority.get(i);
+        }
 
-            for (int i = 0; i < idsSize; i++) {
-                mPriorityTabIds[i] = priority.get(i);
-            }
-            nativeUpdateVisibleIds(mNativeTabContentManager, mPriorityTabIds, primaryTabId);
+        // This is called every frame while the tab switcher is showing; only notify native if the
+        // list actually changed.
+        if (primaryTabId == mPrimaryTabId && count == mPriorityTabIdsCount
+                && Arrays.equals(mNextPriorityTabIds, mPriorityTabIds)) {
+            return;
+        }
+        int[] priorityTabIds = mPriorityTabIds;
+        mPriorityTabIds = mNextPriorityTabIds;
+        mNextPriorityTabIds = priorityTabIds;
+        mPriorityTabIdsCount = count;
+        mPrimaryTabId = primaryTabId;
+        nativeUpdateVisibleIds(mNativeTabContentManager, mPriorityTabIds, primaryTabId);
+    }
+
+    private boolean isPrioritized(int tabId) {
+        for (int i = 0; i < mPriorityTabIdsCount; i++) {
+            if (mPriorityTabIds[i] == tabId) return true;
         }
+        return false;
     }
 
+    /**
+     * Records whether a tab that just became visible in the tab switcher already had a full
+     * resolution thumbnail.
+     * @param tabId The id of the tab.
+     */
+    public void onTabShown(int tabId) {
+        if (mNativeTabContentManager == 0) return;
+        boolean hasFullThumbnail = nativeHasFullCachedThumbnail(mNativeTabContentManager, tabId);
+        if (hasFullThumbnail) {
+            mShownWithFullThumbnailCount++;
+        } else {
+            mShownWithoutFullThumbnailCount++;
+        }
+        RecordHistogram.recordBooleanHistogram(
+                "Android.TabSwitcher.TabShownWithFullThumbnail", hasFullThumbnail);
+    }
+
+    /** @return The number of tabs shown with a full resolution thumbnail ready. */
+    @VisibleForTesting
+    public int getShownWithFullThumbnailCount() {
+        return mShownWithFullThumbnailCount;
+    }
+
+    /** @return The number of tabs shown before their full resolution thumbnail was ready. */
+    @VisibleForTesting
+    public int getShownWithoutFullThumbnailCount() {
+        return mShownWithoutFullThumbnailCount;
+    }
 
     /**
      * Removes a thumbnail of the tab whose id is |tabId|.
@@ -0,0 +1,186 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.compositor.layouts.content;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import org.chromium.base.MemoryPressureLevel;
+import org.chromium.base.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of bitmaps used to read back native pages before they are handed to the native thumbnail
+ * cache, which copies them. Released bitmaps are kept up to a byte budget and reused for later
+ * captures of a similar size through {@link Bitmap#reconfigure}, so that opening and closing the
+ * tab switcher does not allocate a new full sized bitmap each time.
+ */
+class ThumbnailBitmapPool {
+    /** Default number of bytes that the pool can hold on to. */
+    static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // A pooled bitmap is only reused if it is at most this many times larger than needed.
+    private static final int MAX_SIZE_RATIO = 2;
+
+    private final int mMaxBytes;
+    // Released bitmaps, least recently released first.
+    private final List<Bitmap> mBitmaps = new ArrayList<>();
+    private int mPooledBytes;
+    private int mBudgetBytes;
+
+    private long mAllocatedBytes;
+    private int mReuseCount;
+
+    /**
+     * @param maxBytes The maximum number of bytes held by the pool without memory pressure.
+     */
+    ThumbnailBitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mBudgetBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared bitmap of the given size, reusing a released one if possible.
+     * @param width  The width of the bitmap.
+     * @param height The height of the bitmap.
+     * @param config The {@link Bitmap.Config} of the bitmap.
+     * @return The bitmap, or null if it could not be allocated.
+     */
+    @Nullable
+    Bitmap acquire(int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bitmap bitmap = takeReusableBitmap(width, height, config);
+            if (bitmap != null) {
+                bitmap.reconfigure(width, height, config);
+                bitmap.eraseColor(Color.TRANSPARENT);
+                mReuseCount++;
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        } catch (OutOfMemoryError ex) {
+            // Free the pool and try once more before giving up.
+            clear();
+            try {
+                bitmap = Bitmap.createBitmap(width, height, config);
+            } catch (OutOfMemoryError secondEx) {
+                return null;
+            }
+        }
+        mAllocatedBytes += getByteCount(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap obtained from {@link #acquire} to the pool. It is recycled if it does not
+     * fit in the budget.
+     * @param bitmap The bitmap, which must not be used by the caller anymore.
+     */
+    void release(Bitmap bitmap) {
+        int byteCount = getByteCount(bitmap);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !bitmap.isMutable()
+                || byteCount > mBudgetBytes) {
+            bitmap.recycle();
+            return;
+        }
+        mBitmaps.add(bitmap);
+        mPooledBytes += byteCount;
+        trimToSize(mBudgetBytes);
+    }
+
+    /**
+     * Shrinks the pool in response to memory pressure.
+     * @param pressure The {@link MemoryPressureLevel}.
+     */
+    void onMemoryPressure(@MemoryPressureLevel int pressure) {
+        if (pressure == MemoryPressureLevel.CRITICAL) {
+            mBudgetBytes = 0;
+        } else if (pressure == MemoryPressureLevel.MODERATE) {
+            mBudgetBytes = mMaxBytes / 2;
+        } else {
+            mBudgetBytes = mMaxBytes;
+        }
+        trimToSize(mBudgetBytes);
+    }
+
+    /** Recycles all the pooled bitmaps. */
+    void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The number of bytes allocated for new bitmaps since the last call, which resets it.
+     */
+    long takeAllocatedBytes() {
+        long allocatedBytes = mAllocatedBytes;
+        mAllocatedBytes = 0;
+        return allocatedBytes;
+    }
+
+    /** @return The number of bytes held by the pool. */
+    @VisibleForTesting
+    int getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /** @return The number of times a pooled bitmap was reused. */
+    @VisibleForTesting
+    int getReuseCount() {
+        return mReuseCount;
+    }
+
+    // Removes the smallest pooled bitmap that can hold the requested size from the pool.
+    @Nullable
+    private Bitmap takeReusableBitmap(int width, int height, Bitmap.Config config) {
+        long neededBytes = (long) width * height * getBytesPerPixel(config);
+        int bestIndex = -1;
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            int byteCount = getByteCount(mBitmaps.get(i));
+            if (byteCount < neededBytes || byteCount > neededBytes * MAX_SIZE_RATIO) continue;
+            if (bestIndex == -1 || byteCount < getByteCount(mBitmaps.get(bestIndex))) {
+                bestIndex = i;
+            }
+        }
+        if (bestIndex == -1) return null;
+
+        Bitmap bitmap = mBitmaps.remove(bestIndex);
+        mPooledBytes -= getByteCount(bitmap);
+        return bitmap;
+    }
+
+    private void trimToSize(int maxBytes) {
+        while (mPooledBytes > maxBytes) {
+            Bitmap bitmap = mBitmaps.remove(0);
+            mPooledBytes -= getByteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
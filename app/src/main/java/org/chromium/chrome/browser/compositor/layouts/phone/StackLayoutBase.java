@@ -11,6 +11,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.SystemClock;
 import android.support.annotation.IntDef;
+import android.util.SparseBooleanArray;
 import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.FrameLayout;
@@ -163,6 +164,9 @@ public abstract class StackLayoutBase extends Layout implements Animatable {
     private StackTab[] mSortedPriorityArray;
 
     private final ArrayList<Integer> mVisibilityArray = new ArrayList<Integer>();
+    // Ids of the tabs visible in the current and previous frame, to detect tabs being shown.
+    private SparseBooleanArray mShownTabIds = new SparseBooleanArray();
+    private SparseBooleanArray mPreviouslyShownTabIds = new SparseBooleanArray();
     private final VisibilityComparator mVisibilityComparator = new VisibilityComparator();
     private final OrderComparator mOrderComparator = new OrderComparator();
     private Comparator<StackTab> mSortingComparator = mVisibilityComparator;
@@ -797,6 +801,7 @@ public abstract class StackLayoutBase extends Layout implements Animatable {
     @Override
     public void show(long time, boolean animate) {
         super.show(time, animate);
+        mShownTabIds.clear();
 
         if (!mIsActiveLayout) {
             // The mIsActiveLayout check is necessary because there are certain edge cases where
@@ -814,8 +819,11 @@ public abstract class StackLayoutBase extends Layout implements Animatable {
         }
         mIsActiveLayout = true;
 
-        Tab tab = mTabModelSelector.getCurrentTab();
-        if (tab != null && tab.isNativePage()) mTabContentManager.cacheTabThumbnail(tab);
+        if (mTabContentManager != null) {
+            Tab tab = mTabModelSelector.getCurrentTab();
+            if (tab != null && tab.isNativePage()) mTabContentManager.cacheTabThumbnail(tab);
+            mTabContentManager.recordNativePageBitmapAllocations();
+        }
 
         // Remove any views in case we're getting another call to show before we hide (quickly
         // toggling the tab switcher button).
@@ -1447,11 +1455,29 @@ public abstract class StackLayoutBase extends Layout implements Animatable {
      * @param sortedPriorityArray The array of all the {@link StackTab} sorted by priority.
      */
     private void updateTabsVisibility(StackTab[] sortedPriorityArray) {
+        SparseBooleanArray previouslyShownTabIds = mShownTabIds;
+        mShownTabIds = mPreviouslyShownTabIds;
+        mPreviouslyShownTabIds = previouslyShownTabIds;
+        mShownTabIds.clear();
+
         mVisibilityArray.clear();
+        int leadingVisibleCount = 0;
         for (int i = 0; i < sortedPriorityArray.length; i++) {
-            mVisibilityArray.add(sortedPriorityArray[i].getId());
+            int id = sortedPriorityArray[i].getId();
+            mVisibilityArray.add(id);
+            if (!sortedPriorityArray[i].getLayoutTab().isVisible()) continue;
+
+            if (leadingVisibleCount == i) leadingVisibleCount++;
+            mShownTabIds.put(id, true);
+            if (!mPreviouslyShownTabIds.get(id) && mTabContentManager != null) {
+                mTabContentManager.onTabShown(id);
+            }
+        }
+        // The visible tabs always get their thumbnails first; the others are ranked by how soon
+        // they are expected to scroll into view.
+        if (mTabContentManager != null) {
+            mTabContentManager.updateVisibleIds(mVisibilityArray, -1, leadingVisibleCount);
         }
-        updateCacheVisibleIds(mVisibilityArray);
     }
 
     /**
@@ -384,6 +384,7 @@ public class OverlappingStack extends Stack {
 
         for (int i = mStackTabs.length - 1; i >= 0; i--) {
             LayoutTab layoutTab = mStackTabs[i].getLayoutTab();
+            final boolean wasVisible = layoutTab.isVisible();
             layoutTab.setVisible(true);
 
             // Don't bother with clipping tabs that are dying, rotating, with an X offset, or
@@ -426,7 +427,9 @@ public class OverlappingStack extends Stack {
                 // If the tab is completed covered, don't bother drawing it at all.
                 layoutTab.setVisible(false);
                 layoutTab.setDrawDecoration(true);
-                mLayout.releaseResourcesForTab(layoutTab);
+                // Most tabs of a large stack stay covered from frame to frame. Their resources
+                // only need to be released when they get covered.
+                if (wasVisible) mLayout.releaseResourcesForTab(layoutTab);
             } else {
                 // Fade the tab as it gets too close to the next one. This helps
                 // prevent overlapping shadows from becoming too dark.
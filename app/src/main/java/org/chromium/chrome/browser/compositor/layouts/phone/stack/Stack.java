@@ -31,6 +31,7 @@ import org.chromium.ui.base.LocalizationUtils;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
 
 /**
  * Handles all the drawing and events of a stack of stackTabs.
@@ -130,6 +131,12 @@ public abstract class Stack implements ChromeAnimation.Animatable {
      */
     private static final long DRAG_TIME_THRESHOLD = 400;
 
+    /**
+     * How many frames ahead the scroll position is extrapolated to decide which thumbnails to load
+     * first, so that they are ready before the tabs scroll into view.
+     */
+    private static final int THUMBNAIL_PREFETCH_LOOKAHEAD_FRAMES = 8;
+
     /**
      * Minimum motion threshold to lock the scroll mode.
      */
@@ -210,6 +217,10 @@ public abstract class Stack implements ChromeAnimation.Animatable {
 
     private int mReferenceOrderIndex = -1;
 
+    // Smoothed change of the scroll offset per frame, used to predict which tabs come next.
+    private float mScrollVelocityPerFrame;
+    private float mLastFrameScrollOffset;
+
     // Orientation Variables
     protected int mCurrentMode = Orientation.PORTRAIT;
 
@@ -234,6 +245,15 @@ public abstract class Stack implements ChromeAnimation.Animatable {
 
     private boolean mIsStackForCurrentTabList;
 
+    // Hit testing index over the visible tabs, sorted by where their click target starts along the
+    // scroll direction. It is rebuilt lazily for the first hit test after the tabs moved.
+    private StackTab[] mHitTestTabs;
+    private int[] mHitTestIndices;
+    private float[] mHitTestStarts;
+    private int[] mHitTestCandidates;
+    private int mHitTestCount;
+    private float mHitTestMaxExtent;
+
     private final AnimatorListenerAdapter mViewAnimatorListener = new AnimatorListenerAdapter() {
         @Override
         public void onAnimationCancel(Animator animation) {
@@ -471,6 +491,10 @@ public abstract class Stack implements ChromeAnimation.Animatable {
         // TODO: Recreating the stack {@link StackTab} here might be overkill.  Will these
         // already exist in the cache?  Check to make sure it makes sense.
         createStackTabs(false);
+
+        // Only scrolling within this session should affect which thumbnails are loaded first.
+        mScrollVelocityPerFrame = 0.f;
+        mLastFrameScrollOffset = mScrollOffset;
     }
 
     /*
@@ -1211,27 +1235,111 @@ public abstract class Stack implements ChromeAnimation.Animatable {
      * @return     The index of the tab selected. -1 if none.
      */
     private int getTabIndexAtPositon(float x, float y, float slop) {
+        if (mStackTabs == null) return -1;
+        // Without slop, only the tabs whose click target contains the position can be selected.
+        if (slop == 0) return getTabIndexAtPositonFromIndex(x, y);
+
         int closestIndex = -1;
         float closestDistance = mLayout.getHeight() + mLayout.getWidth();
-        if (mStackTabs != null) {
-            for (int i = mStackTabs.length - 1; i >= 0; --i) {
-                // This is a fail safe.  We should never have a situation where a dying
-                // {@link LayoutTab} can get accessed (the animation check should catch it).
-                if (!mStackTabs[i].isDying() && mStackTabs[i].getLayoutTab().isVisible()) {
-                    float d = mStackTabs[i].getLayoutTab().computeDistanceTo(x, y);
-                    // Strict '<' is very important here because we might have several tab at the
-                    // same place and we want the one above.
-                    if (d < closestDistance) {
-                        closestIndex = i;
-                        closestDistance = d;
-                        if (d == 0) break;
-                    }
+        for (int i = mStackTabs.length - 1; i >= 0; --i) {
+            // This is a fail safe.  We should never have a situation where a dying
+            // {@link LayoutTab} can get accessed (the animation check should catch it).
+            if (!mStackTabs[i].isDying() && mStackTabs[i].getLayoutTab().isVisible()) {
+                float d = mStackTabs[i].getLayoutTab().computeDistanceTo(x, y);
+                // Strict '<' is very important here because we might have several tab at the
+                // same place and we want the one above.
+                if (d < closestDistance) {
+                    closestIndex = i;
+                    closestDistance = d;
+                    if (d == 0) break;
                 }
             }
         }
         return closestDistance <= slop ? closestIndex : -1;
     }
 
+    /**
+     * Same as {@link #getTabIndexAtPositon(float, float, float)} with no slop, but only tests the
+     * tabs that overlap the position along the scroll direction.
+     */
+    private int getTabIndexAtPositonFromIndex(float x, float y) {
+        if (mHitTestTabs != mStackTabs) buildHitTestIndex();
+        final float position = mCurrentMode == Orientation.PORTRAIT ? y : x;
+
+        // Find the tabs starting before the position, and no more than the size of the largest
+        // tab before it. The slack covers rounding in the stored extents.
+        int end = upperBound(mHitTestStarts, mHitTestCount, position);
+        int begin = upperBound(mHitTestStarts, end, position - mHitTestMaxExtent - 1.f);
+        int candidateCount = 0;
+        for (int i = begin; i < end; i++) mHitTestCandidates[candidateCount++] = mHitTestIndices[i];
+        Arrays.sort(mHitTestCandidates, 0, candidateCount);
+
+        // Visit the candidates from the top of the stack, as the full scan does.
+        int closestIndex = -1;
+        float closestDistance = 0.f;
+        for (int i = candidateCount - 1; i >= 0; --i) {
+            int index = mHitTestCandidates[i];
+            // Tabs can start dying or be hidden after the index was built.
+            if (mStackTabs[index].isDying() || !mStackTabs[index].getLayoutTab().isVisible()) {
+                continue;
+            }
+            float d = mStackTabs[index].getLayoutTab().computeDistanceTo(x, y);
+            if (d <= 0 && (closestIndex == -1 || d < closestDistance)) {
+                closestIndex = index;
+                closestDistance = d;
+                if (d == 0) break;
+            }
+        }
+        return closestIndex;
+    }
+
+    private void buildHitTestIndex() {
+        mHitTestTabs = mStackTabs;
+        mHitTestCount = 0;
+        mHitTestMaxExtent = 0.f;
+        if (mStackTabs == null) return;
+
+        final int count = mStackTabs.length;
+        if (mHitTestIndices == null || mHitTestIndices.length < count) {
+            mHitTestIndices = new int[count];
+            mHitTestStarts = new float[count];
+            mHitTestCandidates = new int[count];
+        }
+        final boolean portrait = mCurrentMode == Orientation.PORTRAIT;
+        for (int i = 0; i < count; i++) {
+            if (mStackTabs[i].isDying() || !mStackTabs[i].getLayoutTab().isVisible()) continue;
+            RectF bounds = mStackTabs[i].getLayoutTab().getClickTargetBounds();
+            float start = portrait ? bounds.top : bounds.left;
+            float extent = portrait ? bounds.height() : bounds.width();
+            mHitTestMaxExtent = Math.max(mHitTestMaxExtent, extent);
+
+            // Insertion sort: the tabs are laid out in order, so this is close to linear.
+            int j = mHitTestCount++;
+            while (j > 0 && mHitTestStarts[j - 1] > start) {
+                mHitTestStarts[j] = mHitTestStarts[j - 1];
+                mHitTestIndices[j] = mHitTestIndices[j - 1];
+                j--;
+            }
+            mHitTestStarts[j] = start;
+            mHitTestIndices[j] = i;
+        }
+    }
+
+    /** @return The number of the first |count| values that are not greater than |value|. */
+    private static int upperBound(float[] values, int count, float value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     /**
      * ComputeTabPosition pass 1:
      * Combine the overall stack scale with the animated tab scale.
@@ -1491,8 +1599,12 @@ public abstract class Stack implements ChromeAnimation.Animatable {
      * @param stackRect The frame of the stack.
      */
     private void computeTabVisibilitySortingHelper(RectF stackRect) {
+        final float scrollDelta = mScrollOffset - mLastFrameScrollOffset;
+        mScrollVelocityPerFrame = (mScrollVelocityPerFrame + scrollDelta) / 2.f;
+        mLastFrameScrollOffset = mScrollOffset;
+
         int referenceIndex = mReferenceOrderIndex;
-        if (referenceIndex == -1) referenceIndex = computeReferenceIndex();
+        if (referenceIndex == -1) referenceIndex = computePrefetchReferenceIndex();
 
         final float width = mLayout.getWidth();
         final float height = mLayout.getHeight();
@@ -1505,11 +1617,26 @@ public abstract class Stack implements ChromeAnimation.Animatable {
         final float stackVisibilityMultiplier = stackArea / layoutArea;
 
         for (int i = 0; i < mStackTabs.length; i++) {
-            mStackTabs[i].updateStackVisiblityValue(stackVisibilityMultiplier);
-            mStackTabs[i].updateVisiblityValue(referenceIndex);
+            mStackTabs[i].updateVisiblityValues(referenceIndex, stackVisibilityMultiplier);
         }
     }
 
+    /**
+     * Shifts the reference index towards where the stack is scrolling, so that the tabs about to
+     * become visible get their thumbnails ahead of the ones that were just scrolled past.
+     * @return The index of the tab expected to be centered a few frames from now.
+     */
+    private int computePrefetchReferenceIndex() {
+        int referenceIndex = computeReferenceIndex();
+        if (mSpacing <= 0) return referenceIndex;
+
+        // The tab at index i is centered when the scroll offset is about -i * mSpacing.
+        float predictedShift =
+                -mScrollVelocityPerFrame * THUMBNAIL_PREFETCH_LOOKAHEAD_FRAMES / mSpacing;
+        return MathUtils.clamp(
+                referenceIndex + Math.round(predictedShift), 0, mStackTabs.length - 1);
+    }
+
     /**
      * Determine the current amount of overscroll. If the value is 0, there is
      * no overscroll. If the value is < 0, tabs are overscrolling towards the
@@ -1554,6 +1681,8 @@ public abstract class Stack implements ChromeAnimation.Animatable {
      * @param stackRect The rectangle the stack should be drawn into. It may change over frames.
      */
     public void computeTabPosition(long time, RectF stackRect) {
+        // The tabs move, so the hit testing index has to be rebuilt.
+        mHitTestTabs = null;
         if (mStackTabs == null || mStackTabs.length == 0) return;
 
         // Step 1: Updates the {@link LayoutTab} scale, alpha and depth values.
@@ -400,22 +400,13 @@ public class StackTab implements ChromeAnimation.Animatable {
     }
 
     /**
-     * Updates the cached visible area value to be used to sort tabs by visibility.
-     * @param referenceIndex The index that has the highest priority.
+     * Updates the cached values to be used to sort tabs by visibility.
+     * @param referenceIndex  The index that has the highest priority.
+     * @param stackVisibility Multiplier that represents how much the stack fills the screen.
      */
-    public void updateVisiblityValue(int referenceIndex) {
+    public void updateVisiblityValues(int referenceIndex, float stackVisibility) {
         mCachedVisibleArea = mLayoutTab.computeVisibleArea();
         mCachedIndexDistance = Math.abs(mIndex - referenceIndex);
-        mOrderSortingValue = computeOrderSortingValue(mCachedIndexDistance, mCacheStackVisibility);
-        mVisiblitySortingValue = computeVisibilitySortingValue(
-                mCachedVisibleArea, mOrderSortingValue, mCacheStackVisibility);
-    }
-
-    /**
-     * Updates the cached visible area value to be used to sort tabs by visibility.
-     * @param stackVisibility   Multiplier that represents how much the stack fills the screen.
-     */
-    public void updateStackVisiblityValue(float stackVisibility) {
         mCacheStackVisibility = stackVisibility;
         mOrderSortingValue = computeOrderSortingValue(mCachedIndexDistance, mCacheStackVisibility);
         mVisiblitySortingValue = computeVisibilitySortingValue(
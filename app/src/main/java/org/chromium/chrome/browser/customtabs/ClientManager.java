@@ -180,6 +180,8 @@ class ClientManager {
         private KeepAliveServiceConnection mKeepAliveConnection;
         private String mPredictedUrl;
         private long mLastMayLaunchUrlTimestamp;
+        private int mGoodPredictionCount;
+        private int mBadPredictionCount;
         private boolean mCanUseHiddenTab;
         private boolean mAllowParallelRequest;
         private boolean mAllowResourcePrefetch;
@@ -397,12 +399,15 @@ class ClientManager {
 
         SessionParams params = mSessionParams.get(session);
         if (outcome == PredictionStatus.GOOD) {
+            params.mGoodPredictionCount++;
             long elapsedTimeMs = SystemClock.elapsedRealtime()
                     - params.getLastMayLaunchUrlTimestamp();
             RequestThrottler.getForUid(ContextUtils.getApplicationContext(), params.uid)
                     .registerSuccess(params.mPredictedUrl);
             RecordHistogram.recordCustomTimesHistogram("CustomTabs.PredictionToLaunch",
                     elapsedTimeMs, 1, TimeUnit.MINUTES.toMillis(3), TimeUnit.MILLISECONDS, 100);
+        } else if (outcome == PredictionStatus.BAD) {
+            params.mBadPredictionCount++;
         }
         RecordHistogram.recordEnumeratedHistogram("CustomTabs.WarmupStateOnLaunch",
                 getWarmupState(session), CalledWarmup.NUM_ENTRIES);
@@ -653,6 +658,20 @@ class ClientManager {
         }
     }
 
+    /**
+     * Returns the rate at which the high confidence predictions of a session turned out to be
+     * right. Sessions without enough launches get a neutral rate, as the counts are smoothed
+     * towards 1/2.
+     * @param session The session.
+     * @return The prediction hit rate, in [0, 1].
+     */
+    public synchronized float getPredictionHitRate(CustomTabsSessionToken session) {
+        SessionParams params = mSessionParams.get(session);
+        if (params == null) return 0.5f;
+        return (params.mGoodPredictionCount + 1f)
+                / (params.mGoodPredictionCount + params.mBadPredictionCount + 2f);
+    }
+
     /**
      * Get whether hidden tab speculation can be used. The default is false.
      */
@@ -35,6 +35,7 @@ import org.chromium.base.CommandLine;
 import org.chromium.base.ContextUtils;
 import org.chromium.base.Log;
 import org.chromium.base.StrictModeContext;
+import org.chromium.base.SysUtils;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.TimeUtils;
 import org.chromium.base.TraceEvent;
@@ -55,6 +56,7 @@ import org.chromium.chrome.browser.WarmupManager;
 import org.chromium.chrome.browser.browserservices.BrowserSessionContentUtils;
 import org.chromium.chrome.browser.browserservices.Origin;
 import org.chromium.chrome.browser.browserservices.PostMessageHandler;
+import org.chromium.chrome.browser.browserservices.VerificationResultStore;
 import org.chromium.chrome.browser.customtabs.dynamicmodule.ModuleLoader;
 import org.chromium.chrome.browser.device.DeviceClassManager;
 import org.chromium.chrome.browser.init.ChainedTasks;
@@ -196,7 +198,14 @@ public class CustomTabsConnection {
     private static CustomTabsConnection sInstance;
     private @Nullable String mTrustedPublisherUrlPackage;
 
-    /** Holds the parameters for the current hidden tab speculation. */
+    /** The maximum number of hidden tab speculations kept at once, for different sessions. */
+    @VisibleForTesting
+    static final int MAX_SPECULATIONS = 3;
+
+    // Amount of physical memory required for each hidden tab speculation slot.
+    private static final int PHYSICAL_MEMORY_PER_SPECULATION_KB = 2 * 1024 * 1024;
+
+    /** Holds the parameters for a hidden tab speculation. */
     @VisibleForTesting
     static final class SpeculationParams {
         public final CustomTabsSessionToken session;
@@ -220,20 +229,29 @@ public class CustomTabsConnection {
 
     static class HiddenTabObserver extends EmptyTabObserver {
         private CustomTabsConnection mCustomTabsConnection;
+        private final CustomTabsSessionToken mSession;
 
-        HiddenTabObserver(CustomTabsConnection connection) {
+        HiddenTabObserver(CustomTabsConnection connection, CustomTabsSessionToken session) {
             mCustomTabsConnection = connection;
+            mSession = session;
         }
 
         @Override
         public void onCrash(Tab tab) {
             final CustomTabsConnection connection = mCustomTabsConnection;
-            ThreadUtils.postOnUiThread(() -> { connection.cancelSpeculation(null /* session */); });
+            final CustomTabsSessionToken session = mSession;
+            ThreadUtils.postOnUiThread(() -> {
+                // Only cancel the speculation of the crashed tab, the session may have replaced it.
+                SpeculationParams speculation = connection.mSpeculations.get(session);
+                if (speculation != null && speculation.tab == tab) {
+                    connection.cancelSpeculation(session);
+                }
+            });
         }
     }
 
     @VisibleForTesting
-    SpeculationParams mSpeculation;
+    final SpeculationPool<SpeculationParams> mSpeculations;
     /** @deprecated Use {@link ContextUtils} instead */
     protected final Context mContext;
     @VisibleForTesting
@@ -262,6 +280,17 @@ public class CustomTabsConnection {
         mContext = ContextUtils.getApplicationContext();
         mClientManager = new ClientManager();
         mLogRequests = CommandLine.getInstance().hasSwitch(LOG_SERVICE_REQUESTS);
+        mSpeculations = new SpeculationPool<>(new SpeculationPool.Delegate<SpeculationParams>() {
+            @Override
+            public float getScore(CustomTabsSessionToken session) {
+                return mClientManager.getPredictionHitRate(session);
+            }
+
+            @Override
+            public void onEvicted(SpeculationParams speculation) {
+                speculation.tab.destroy();
+            }
+        }, MAX_SPECULATIONS);
     }
 
     /**
@@ -457,7 +486,7 @@ public class CustomTabsConnection {
         }
 
         // (2)
-        if (mayCreateSpareWebContents && mSpeculation == null) {
+        if (mayCreateSpareWebContents && mSpeculations.isEmpty()) {
             tasks.add(() -> {
                 // Temporary fix for https://crbug.com/797832.
                 // TODO(lizeb): Properly fix instead of papering over the bug, this code should
@@ -489,10 +518,11 @@ public class CustomTabsConnection {
                     WarmupManager.getInstance().startPreconnectPredictorInitialization(profile);
 
                     // (5)
-                    // The throttling database uses shared preferences, that can cause a
-                    // StrictMode violation on the first access. Make sure that this access is
-                    // not in mayLauchUrl.
+                    // The throttling state and the origin verifications are read from disk on
+                    // first access. Make sure that this access is not in mayLaunchUrl or in an
+                    // origin check.
                     RequestThrottler.loadInBackground(ContextUtils.getApplicationContext());
+                    VerificationResultStore.loadInBackground();
                 }
             });
         }
@@ -802,10 +832,10 @@ public class CustomTabsConnection {
 
     @VisibleForTesting
     String getSpeculatedUrl(CustomTabsSessionToken session) {
-        if (mSpeculation == null || session == null || !session.equals(mSpeculation.session)) {
-            return null;
-        }
-        return mSpeculation.tab != null ? mSpeculation.url : null;
+        if (session == null) return null;
+        SpeculationParams speculation = mSpeculations.get(session);
+        if (speculation == null) return null;
+        return speculation.tab != null ? speculation.url : null;
     }
 
     /**
@@ -821,13 +851,13 @@ public class CustomTabsConnection {
      */
     Tab takeHiddenTab(CustomTabsSessionToken session, String url, String referrer) {
         try (TraceEvent e = TraceEvent.scoped("CustomTabsConnection.takeHiddenTab")) {
-            if (mSpeculation == null || session == null) return null;
-            if (session.equals(mSpeculation.session) && mSpeculation.tab != null) {
-                Tab tab = mSpeculation.tab;
-                tab.removeObserver(mSpeculation.observer);
-                String speculatedUrl = mSpeculation.url;
-                String speculationReferrer = mSpeculation.referrer;
-                mSpeculation = null;
+            if (session == null) return null;
+            SpeculationParams speculation = mSpeculations.get(session);
+            if (speculation != null && speculation.tab != null) {
+                Tab tab = speculation.tab;
+                tab.removeObserver(speculation.observer);
+                String speculatedUrl = speculation.url;
+                String speculationReferrer = speculation.referrer;
 
                 boolean ignoreFragments = mClientManager.getIgnoreFragmentsForSession(session);
                 boolean isExactSameUrl = TextUtils.equals(speculatedUrl, url);
@@ -835,7 +865,10 @@ public class CustomTabsConnection {
                         || (ignoreFragments
                                    && UrlUtilities.urlsMatchIgnoringFragments(speculatedUrl, url));
                 if (referrer == null) referrer = "";
-                if (urlsMatch && TextUtils.equals(speculationReferrer, referrer)) {
+                boolean hit = urlsMatch && TextUtils.equals(speculationReferrer, referrer);
+                recordSpeculationSwapRank(hit, mSpeculations.getRank(session));
+                mSpeculations.take(session, hit);
+                if (hit) {
                     recordSpeculationStatusOnSwap(SPECULATION_STATUS_ON_SWAP_BACKGROUND_TAB_TAKEN);
                     return tab;
                 } else {
@@ -1369,6 +1402,8 @@ public class CustomTabsConnection {
 
         if (ChromeApplication.isSevereMemorySignal(level)) {
             getInstance().mClientManager.cleanupUnusedSessions();
+            // Keep at most one speculation until the memory pressure is over.
+            getInstance().mSpeculations.setCapacity(1);
         }
         if (getInstance().mModuleLoader != null) getInstance().mModuleLoader.onTrimMemory(level);
     }
@@ -1410,14 +1445,23 @@ public class CustomTabsConnection {
         return speculationResult == SPECULATION_STATUS_ON_START_ALLOWED;
     }
 
-    /** Cancels the speculation for a given session, or any session if null. */
+    /** Cancels the speculation for a given session, or all sessions if null. */
     void cancelSpeculation(CustomTabsSessionToken session) {
         ThreadUtils.assertOnUiThread();
-        if (mSpeculation == null) return;
-        if (session == null || session.equals(mSpeculation.session)) {
-            mSpeculation.tab.destroy();
-            mSpeculation = null;
+        mSpeculations.cancel(session);
+    }
+
+    /**
+     * Sizes the speculation pool for the device: one slot per {@link
+     * #PHYSICAL_MEMORY_PER_SPECULATION_KB} of physical memory, and a single slot on low-end
+     * devices or while the system is low on memory.
+     */
+    private void updateSpeculationCapacity() {
+        int capacity = 1;
+        if (!SysUtils.isLowEndDevice() && !SysUtils.isCurrentlyLowMemory()) {
+            capacity = SysUtils.amountOfPhysicalMemoryKB() / PHYSICAL_MEMORY_PER_SPECULATION_KB;
         }
+        mSpeculations.setCapacity(Math.max(1, capacity));
     }
 
     /*
@@ -1430,8 +1474,9 @@ public class CustomTabsConnection {
         WarmupManager warmupManager = WarmupManager.getInstance();
         Profile profile = Profile.getLastUsedProfile();
 
-        // At most one on-going speculation, clears the previous one.
-        cancelSpeculation(null);
+        // At most one on-going speculation per session, clears the previous one.
+        cancelSpeculation(session);
+        updateSpeculationCapacity();
 
         if (useHiddenTab) {
             recordSpeculationStatusOnStart(SPECULATION_STATUS_ON_START_BACKGROUND_TAB);
@@ -1451,9 +1496,10 @@ public class CustomTabsConnection {
         Intent extrasIntent = new Intent();
         if (extras != null) extrasIntent.putExtras(extras);
         if (IntentHandler.getExtraHeadersFromIntent(extrasIntent) != null) return;
+        if (!mSpeculations.canAdd(session)) return;
 
         Tab tab = Tab.createDetached(CustomTabDelegateFactory.createDummy());
-        HiddenTabObserver observer = new HiddenTabObserver(this);
+        HiddenTabObserver observer = new HiddenTabObserver(this, session);
         tab.addObserver(observer);
 
         // Updating post message as soon as we have a valid WebContents.
@@ -1464,8 +1510,9 @@ public class CustomTabsConnection {
         if (referrer != null && !referrer.isEmpty()) {
             loadParams.setReferrer(new Referrer(referrer, ReferrerPolicy.DEFAULT));
         }
-        mSpeculation = new SpeculationParams(session, url, tab, observer, referrer, extras);
-        mSpeculation.tab.loadUrl(loadParams);
+        mSpeculations.add(
+                session, new SpeculationParams(session, url, tab, observer, referrer, extras));
+        tab.loadUrl(loadParams);
     }
 
     @VisibleForTesting
@@ -1520,6 +1567,12 @@ public class CustomTabsConnection {
                 "CustomTabs.SpeculationStatusOnSwap", status, SPECULATION_STATUS_ON_SWAP_MAX);
     }
 
+    private static void recordSpeculationSwapRank(boolean hit, int rank) {
+        RecordHistogram.recordEnumeratedHistogram(hit ? "CustomTabs.SpeculationPool.HitRank"
+                                                      : "CustomTabs.SpeculationPool.MissRank",
+                rank, MAX_SPECULATIONS);
+    }
+
     private static native void nativeCreateAndStartDetachedResourceRequest(Profile profile,
             CustomTabsSessionToken session, String url, String origin, int referrerPolicy,
             @DetachedResourceRequestMotivation int motivation);
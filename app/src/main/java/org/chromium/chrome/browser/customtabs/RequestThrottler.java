@@ -4,7 +4,6 @@
 
 package org.chromium.chrome.browser.customtabs;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.SystemClock;
@@ -12,11 +11,14 @@ import android.text.TextUtils;
 import android.util.SparseArray;
 
 import org.chromium.base.VisibleForTesting;
-import org.chromium.base.task.AsyncTask;
+import org.chromium.chrome.browser.util.SnapshotStateStore;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Applications are throttled in two ways:
@@ -24,7 +26,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * (b) Will be banned from prerendering if too many failed attempts are registered.
  *
  * The first throttling is handled by {@link updateStatsAndReturnIfAllowed}, and the second one
- * is persisted to disk and handled by {@link isPrerenderingAllowed()}.
+ * is persisted to disk and handled by {@link isPrerenderingAllowed()}. The persisted state of all
+ * the UIDs is kept in memory, see {@link SnapshotStateStore}.
  *
  * This class is *not* thread-safe.
  */
@@ -41,15 +44,17 @@ class RequestThrottler {
     private static final long BAN_DURATION_MS = TimeUnit.DAYS.toMillis(7);
     private static final long FORGET_AFTER_MS = TimeUnit.DAYS.toMillis(14);
     private static final float ALPHA = MAX_SCORE / BAN_DURATION_MS;
+    private static final String FILE_NAME = "customtabs_throttling_state";
+    // Used by previous versions, which kept the state in SharedPreferences.
     private static final String PREFERENCES_NAME = "customtabs_client_bans";
     private static final String SCORE = "score_";
     private static final String LAST_REQUEST = "last_request_";
     private static final String BANNED_UNTIL = "banned_until_";
 
-    private static final AtomicBoolean sAccessedSharedPreferences = new AtomicBoolean();
+    private static Store sStore;
     private static SparseArray<RequestThrottler> sUidToThrottler;
 
-    private final SharedPreferences mSharedPreferences;
+    private final Store mStore;
     private final int mUid;
     private float mScore;
     private long mLastPrerenderRequestMs;
@@ -94,10 +99,7 @@ class RequestThrottler {
         long now = System.currentTimeMillis();
         mScore = Math.min(MAX_SCORE, mScore - 1 + ALPHA * (now - mLastPrerenderRequestMs));
         mLastPrerenderRequestMs = now;
-        SharedPreferences.Editor editor = mSharedPreferences.edit();
-        editor.putLong(LAST_REQUEST + mUid, mLastPrerenderRequestMs);
-        updateBan(editor);
-        editor.apply();
+        updateBan();
     }
 
     /** Signals that an incoming intent matched with a mayLaunchUrl() call.
@@ -119,20 +121,18 @@ class RequestThrottler {
             mUrl = null;
         }
         mScore = Math.min(MAX_SCORE, mScore + bonus);
-        SharedPreferences.Editor editor = mSharedPreferences.edit();
-        updateBan(editor);
-        editor.apply();
+        updateBan();
     }
 
     /** @return the {@link Throttler} for a given UID. */
     public static RequestThrottler getForUid(Context context, int uid) {
         if (sUidToThrottler == null) {
             sUidToThrottler = new SparseArray<>();
-            purgeOldEntries(context);
+            getStore(context).purgeOldRecords(System.currentTimeMillis() - FORGET_AFTER_MS);
         }
         RequestThrottler throttler = sUidToThrottler.get(uid);
         if (throttler == null) {
-            throttler = new RequestThrottler(context, uid);
+            throttler = new RequestThrottler(getStore(context), uid);
             sUidToThrottler.put(uid, throttler);
         }
         return throttler;
@@ -152,93 +152,177 @@ class RequestThrottler {
      *   request.
      * So, in "steady state", a 50% hit rate is tolerated.
      */
-    private void updateBan(SharedPreferences.Editor editor) {
+    private void updateBan() {
         if (mScore <= 0) {
             mScore = MAX_SCORE;
             mBannedUntilMs = System.currentTimeMillis() + BAN_DURATION_MS;
-            editor.putLong(BANNED_UNTIL + mUid, mBannedUntilMs);
         }
-        editor.putFloat(SCORE + mUid, mScore);
+        mStore.put(mUid, mScore, mLastPrerenderRequestMs, mBannedUntilMs);
     }
 
-    private RequestThrottler(Context context, int uid) {
-        mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+    private RequestThrottler(Store store, int uid) {
+        mStore = store;
         mUid = uid;
-        mScore = mSharedPreferences.getFloat(SCORE + uid, MAX_SCORE);
-        mLastPrerenderRequestMs = mSharedPreferences.getLong(LAST_REQUEST + uid, 0);
-        mBannedUntilMs = mSharedPreferences.getLong(BANNED_UNTIL + uid, 0);
+        Record record = store.get(uid);
+        mScore = record != null ? record.mScore : MAX_SCORE;
+        mLastPrerenderRequestMs = record != null ? record.mLastRequestMs : 0;
+        mBannedUntilMs = record != null ? record.mBannedUntilMs : 0;
     }
 
     /** Resets the banning state. */
     void reset() {
         if (sUidToThrottler != null) sUidToThrottler.remove(mUid);
-        mSharedPreferences.edit()
-                .remove(SCORE + mUid)
-                .remove(LAST_REQUEST + mUid)
-                .remove(BANNED_UNTIL + mUid)
-                .apply();
+        mStore.remove(mUid);
     }
 
     /** Bans from prerendering. Used for testing. */
     void ban() {
         mScore = -1;
-        SharedPreferences.Editor editor = mSharedPreferences.edit();
-        updateBan(editor);
-        editor.apply();
+        updateBan();
     }
 
     /**
-     * Loads the SharedPreferences in the background.
-     *
-     * SharedPreferences#edit() blocks until the preferences are loaded from disk. This results in a
-     * StrictMode violation as this may be called from the UI thread. This loads the preferences in
-     * the background to hopefully avoid the violation (if the next edit() call happens once the
-     * preferences are loaded).
+     * Reads the throttling state in the background, so that the first mayLaunchUrl() call does not
+     * have to, as it may be called from the UI thread.
      *
      * @param context The application context.
      */
-    // TODO(crbug.com/635567): Fix this properly.
-    @SuppressLint("CommitPrefEdits")
-    static void loadInBackground(final Context context) {
-        boolean alreadyDone = !sAccessedSharedPreferences.compareAndSet(false, true);
-        if (alreadyDone) return;
-        new AsyncTask<Void>() {
-            @Override
-            protected Void doInBackground() {
-                context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
-                return null;
-            }
+    static void loadInBackground(Context context) {
+        getStore(context).loadInBackground();
+    }
+
+    @VisibleForTesting
+    static void purgeAllEntriesForTesting(Context context) {
+        getStore(context).clear();
+        if (sUidToThrottler != null) sUidToThrottler.clear();
+    }
+
+    /** @return The store holding the throttling state of all the UIDs. */
+    @VisibleForTesting
+    static synchronized Store getStore(Context context) {
+        if (sStore == null) sStore = new Store(context.getApplicationContext());
+        return sStore;
+    }
+
+    /** The persisted throttling state of a UID. */
+    private static class Record {
+        final float mScore;
+        final long mLastRequestMs;
+        final long mBannedUntilMs;
+
+        Record(float score, long lastRequestMs, long bannedUntilMs) {
+            mScore = score;
+            mLastRequestMs = lastRequestMs;
+            mBannedUntilMs = bannedUntilMs;
         }
-                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    /** Removes all the UIDs that haven't been seen since at least {@link FORGET_AFTER_MS}. */
-    private static void purgeOldEntries(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        long now = System.currentTimeMillis();
-        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
-            if (entry == null) continue;
-            String key = entry.getKey();
-            if (key == null || !key.startsWith(LAST_REQUEST)) continue;
-            long lastRequestMs;
-            try {
-                lastRequestMs = (Long) entry.getValue();
-            } catch (NumberFormatException e) {
-                continue;
+    /**
+     * Holds the {@link Record} of all the UIDs. The snapshot is a count, followed by a (UID, score,
+     * last request time, banned until time) tuple per UID.
+     */
+    static class Store extends SnapshotStateStore {
+        private static final int MAGIC = 0x43544254;
+        private static final int VERSION = 1;
+
+        private final Context mContext;
+
+        // Guarded by |this|.
+        private final SparseArray<Record> mRecords = new SparseArray<>();
+
+        Store(Context context) {
+            super(new File(context.getFilesDir(), FILE_NAME), MAGIC, VERSION);
+            mContext = context;
+        }
+
+        synchronized Record get(int uid) {
+            ensureLoadedLocked();
+            return mRecords.get(uid);
+        }
+
+        synchronized void put(int uid, float score, long lastRequestMs, long bannedUntilMs) {
+            ensureLoadedLocked();
+            mRecords.put(uid, new Record(score, lastRequestMs, bannedUntilMs));
+            scheduleWriteLocked();
+        }
+
+        synchronized void remove(int uid) {
+            ensureLoadedLocked();
+            if (mRecords.indexOfKey(uid) < 0) return;
+            mRecords.remove(uid);
+            scheduleWriteLocked();
+        }
+
+        synchronized void clear() {
+            ensureLoadedLocked();
+            mRecords.clear();
+            scheduleWriteLocked();
+        }
+
+        /** Removes all the UIDs whose last prerender request is older than |timeMs|. */
+        synchronized void purgeOldRecords(long timeMs) {
+            ensureLoadedLocked();
+            boolean purged = false;
+            for (int i = mRecords.size() - 1; i >= 0; i--) {
+                // UIDs which never made a prerender request are kept, as they used to be.
+                long lastRequestMs = mRecords.valueAt(i).mLastRequestMs;
+                if (lastRequestMs == 0 || lastRequestMs > timeMs) continue;
+                mRecords.removeAt(i);
+                purged = true;
             }
-            if (now - lastRequestMs >= FORGET_AFTER_MS) {
-                String uid = key.substring(LAST_REQUEST.length());
-                editor.remove(SCORE + uid).remove(LAST_REQUEST + uid).remove(BANNED_UNTIL + uid);
+            if (purged) scheduleWriteLocked();
+        }
+
+        @Override
+        protected void readSnapshotLocked(byte[] data, DataInputStream input)
+                throws IOException {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                int uid = input.readInt();
+                Record record = new Record(input.readFloat(), input.readLong(), input.readLong());
+                mRecords.put(uid, record);
             }
         }
-        editor.apply();
-    }
 
-    @VisibleForTesting
-    static void purgeAllEntriesForTesting(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
-        sharedPreferences.edit().clear().apply();
-        if (sUidToThrottler != null) sUidToThrottler.clear();
+        @Override
+        protected void writeSnapshotLocked(DataOutputStream output) throws IOException {
+            output.writeInt(mRecords.size());
+            for (int i = 0; i < mRecords.size(); i++) {
+                Record record = mRecords.valueAt(i);
+                output.writeInt(mRecords.keyAt(i));
+                output.writeFloat(record.mScore);
+                output.writeLong(record.mLastRequestMs);
+                output.writeLong(record.mBannedUntilMs);
+            }
+        }
+
+        @Override
+        protected void clearStateLocked() {
+            mRecords.clear();
+        }
+
+        @Override
+        protected boolean importLegacyStateLocked() {
+            SharedPreferences preferences = mContext.getSharedPreferences(PREFERENCES_NAME, 0);
+            for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                String key = entry.getKey();
+                if (key == null || !key.startsWith(SCORE)) continue;
+                String uid = key.substring(SCORE.length());
+                try {
+                    mRecords.put(Integer.parseInt(uid),
+                            new Record(preferences.getFloat(SCORE + uid, MAX_SCORE),
+                                    preferences.getLong(LAST_REQUEST + uid, 0),
+                                    preferences.getLong(BANNED_UNTIL + uid, 0)));
+                } catch (NumberFormatException | ClassCastException e) {
+                    // Skip the malformed entries, as they would not have been read either.
+                }
+            }
+            return mRecords.size() > 0;
+        }
+
+        @Override
+        protected void clearLegacyState() {
+            mContext.getSharedPreferences(PREFERENCES_NAME, 0).edit().clear().apply();
+        }
     }
 }
@@ -0,0 +1,247 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.customtabs;
+
+import android.support.annotation.Nullable;
+import android.support.customtabs.CustomTabsSessionToken;
+
+import org.chromium.base.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the hidden tab speculations of several Custom Tabs sessions, at most one per session.
+ *
+ * The number of slots is capped, and can be lowered under memory pressure. When a new speculation
+ * does not fit, the speculation of the session least likely to launch its URL is dropped, as
+ * scored by the {@link Delegate}, or the new speculation is refused if its own session has the
+ * lowest score. Ties are broken in favor of the most recent speculation.
+ *
+ * The pool only deals with the policy; the speculations themselves are opaque, which allows the
+ * policy to be exercised with fake speculations.
+ *
+ * @param <T> The type of the speculations.
+ */
+class SpeculationPool<T> {
+    /** Scores sessions and releases the speculations dropped from the pool. */
+    interface Delegate<T> {
+        /**
+         * @param session A session.
+         * @return How likely the session is to launch the URL it speculated, in [0, 1].
+         */
+        float getScore(CustomTabsSessionToken session);
+
+        /**
+         * Called when a speculation is dropped from the pool without being taken.
+         * @param speculation The speculation, which should release its resources.
+         */
+        void onEvicted(T speculation);
+    }
+
+    private static class Slot<T> {
+        final CustomTabsSessionToken mSession;
+        final T mSpeculation;
+
+        Slot(CustomTabsSessionToken session, T speculation) {
+            mSession = session;
+            mSpeculation = speculation;
+        }
+    }
+
+    private final Delegate<T> mDelegate;
+    private final int mMaxSlots;
+    private int mCapacity;
+
+    // The speculations, oldest first.
+    private final List<Slot<T>> mSlots = new ArrayList<>();
+
+    // Number of speculations taken that matched or did not match the navigation, by the rank of
+    // the speculation in the pool at that time, 0 being the highest score.
+    private final int[] mHitCounts;
+    private final int[] mMissCounts;
+
+    /**
+     * @param delegate The {@link Delegate} scoring the sessions.
+     * @param maxSlots The maximum number of speculations kept at the same time.
+     */
+    SpeculationPool(Delegate<T> delegate, int maxSlots) {
+        assert maxSlots > 0;
+        mDelegate = delegate;
+        mMaxSlots = maxSlots;
+        mCapacity = maxSlots;
+        mHitCounts = new int[maxSlots];
+        mMissCounts = new int[maxSlots];
+    }
+
+    /** @return The maximum number of speculations, regardless of memory pressure. */
+    int getMaxSlots() {
+        return mMaxSlots;
+    }
+
+    /** @return The number of speculations that can currently be kept. */
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Changes the number of speculations that can be kept, dropping the lowest scored ones if
+     * needed.
+     * @param capacity The new capacity, clamped to [0, {@link #getMaxSlots()}].
+     */
+    void setCapacity(int capacity) {
+        mCapacity = Math.max(0, Math.min(mMaxSlots, capacity));
+        while (mSlots.size() > mCapacity) {
+            evict(findLowestScoredSlot(null));
+        }
+    }
+
+    /** @return The number of speculations in the pool. */
+    int size() {
+        return mSlots.size();
+    }
+
+    /** @return Whether there is no speculation in the pool. */
+    boolean isEmpty() {
+        return mSlots.isEmpty();
+    }
+
+    /**
+     * Returns whether a speculation for |session| would be kept by {@link #add}, so that callers
+     * can avoid creating speculations that would be dropped right away.
+     * @param session The session of the speculation.
+     */
+    boolean canAdd(CustomTabsSessionToken session) {
+        if (mCapacity == 0) return false;
+        if (indexOf(session) != -1 || mSlots.size() < mCapacity) return true;
+        int lowest = findLowestScoredSlot(session);
+        return mDelegate.getScore(session) >= mDelegate.getScore(mSlots.get(lowest).mSession);
+    }
+
+    /**
+     * Adds a speculation, replacing the previous speculation of the same session, and dropping
+     * the lowest scored speculation if the pool is full.
+     * @param session The session of the speculation.
+     * @param speculation The speculation.
+     * @return Whether the speculation was added. If not, it is passed to
+     *         {@link Delegate#onEvicted}.
+     */
+    boolean add(CustomTabsSessionToken session, T speculation) {
+        if (!canAdd(session)) {
+            mDelegate.onEvicted(speculation);
+            return false;
+        }
+        int index = indexOf(session);
+        if (index != -1) {
+            evict(index);
+        } else if (mSlots.size() >= mCapacity) {
+            evict(findLowestScoredSlot(session));
+        }
+        mSlots.add(new Slot<>(session, speculation));
+        return true;
+    }
+
+    /**
+     * @param session A session.
+     * @return The speculation of |session|, or null if there is none.
+     */
+    @Nullable
+    T get(CustomTabsSessionToken session) {
+        int index = indexOf(session);
+        return index == -1 ? null : mSlots.get(index).mSpeculation;
+    }
+
+    /**
+     * Removes the speculation of a session from the pool, without passing it to the
+     * {@link Delegate}, and records whether it was used.
+     * @param session A session.
+     * @param hit Whether the speculation matched the navigation it was taken for.
+     * @return The speculation of |session|, or null if there is none.
+     */
+    @Nullable
+    T take(CustomTabsSessionToken session, boolean hit) {
+        int index = indexOf(session);
+        if (index == -1) return null;
+
+        int rank = getRank(index);
+        if (hit) {
+            mHitCounts[rank]++;
+        } else {
+            mMissCounts[rank]++;
+        }
+        return mSlots.remove(index).mSpeculation;
+    }
+
+    /**
+     * Drops the speculation of a session, or all the speculations.
+     * @param session A session, or null for all sessions.
+     */
+    void cancel(@Nullable CustomTabsSessionToken session) {
+        if (session == null) {
+            while (!mSlots.isEmpty()) evict(mSlots.size() - 1);
+            return;
+        }
+        int index = indexOf(session);
+        if (index != -1) evict(index);
+    }
+
+    /**
+     * @param session A session.
+     * @return The rank by score of the speculation of |session|, 0 being the highest score, or -1
+     *         if there is none.
+     */
+    int getRank(CustomTabsSessionToken session) {
+        int index = indexOf(session);
+        return index == -1 ? -1 : getRank(index);
+    }
+
+    /** @return The number of taken speculations which matched, for a given rank. */
+    @VisibleForTesting
+    int getHitCount(int rank) {
+        return mHitCounts[rank];
+    }
+
+    /** @return The number of taken speculations which did not match, for a given rank. */
+    @VisibleForTesting
+    int getMissCount(int rank) {
+        return mMissCounts[rank];
+    }
+
+    private int indexOf(CustomTabsSessionToken session) {
+        for (int i = 0; i < mSlots.size(); i++) {
+            if (mSlots.get(i).mSession.equals(session)) return i;
+        }
+        return -1;
+    }
+
+    private int getRank(int index) {
+        float score = mDelegate.getScore(mSlots.get(index).mSession);
+        int rank = 0;
+        for (int i = 0; i < mSlots.size(); i++) {
+            if (i != index && mDelegate.getScore(mSlots.get(i).mSession) > score) rank++;
+        }
+        return rank;
+    }
+
+    // Returns the index of the lowest scored slot, oldest first on ties, skipping |excluded|.
+    private int findLowestScoredSlot(@Nullable CustomTabsSessionToken excluded) {
+        int lowest = -1;
+        float lowestScore = Float.MAX_VALUE;
+        for (int i = 0; i < mSlots.size(); i++) {
+            Slot<T> slot = mSlots.get(i);
+            if (slot.mSession.equals(excluded)) continue;
+            float score = mDelegate.getScore(slot.mSession);
+            if (score < lowestScore) {
+                lowest = i;
+                lowestScore = score;
+            }
+        }
+        return lowest;
+    }
+
+    private void evict(int index) {
+        mDelegate.onEvicted(mSlots.remove(index).mSpeculation);
+    }
+}
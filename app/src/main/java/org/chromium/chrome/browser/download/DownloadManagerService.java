@@ -136,6 +136,7 @@ public class DownloadManagerService
     private final long mUpdateDelayInMillis;
 
     private final Handler mHandler;
+    private final DownloadProgressAggregator mProgressAggregator;
 
     /** Generic interface for notifying external UI components about downloads and their states. */
     public interface DownloadObserver extends DownloadSharedPreferenceHelper.Observer {
@@ -164,8 +165,6 @@ public class DownloadManagerService
     private long mNativeDownloadManagerService;
     private DownloadManagerDelegate mDownloadManagerDelegate;
     private NetworkChangeNotifierAutoDetect mNetworkChangeNotifier;
-    // Flag to track if we need to post a task to update download notifications.
-    private boolean mIsUIUpdateScheduled;
     private int mAutoResumptionLimit = -1;
     private DownloadManagerRequestInterceptor mDownloadManagerRequestInterceptor;
 
@@ -260,6 +259,8 @@ public class DownloadManagerService
         mDownloadNotifier = downloadNotifier;
         mUpdateDelayInMillis = updateDelayInMillis;
         mHandler = handler;
+        mProgressAggregator =
+                new DownloadProgressAggregator(this::onFlushProgress, handler, updateDelayInMillis);
         mDownloadSnackbarController = new DownloadSnackbarController();
         mDownloadManagerDelegate = new DownloadManagerDelegate(applicationContext);
         mOMADownloadHandler = new OMADownloadHandler(
@@ -335,7 +336,9 @@ public class DownloadManagerService
             removeAutoResumableDownload(item.getId());
         }
         updateDownloadProgress(item, DownloadStatus.IN_PROGRESS);
-        scheduleUpdateIfNeeded();
+        if (!downloadInfo.isPaused()) {
+            mProgressAggregator.onProgressUpdated(item.getId(), downloadInfo);
+        }
     }
 
     @Override
@@ -452,14 +455,13 @@ public class DownloadManagerService
     }
 
     /**
-     * Updates notifications for a given list of downloads.
-     * @param progresses A list of notifications to update.
+     * Called by {@link DownloadProgressAggregator} to update the notification for a download.
+     * @param id Id of the download to update.
      */
-    private void updateAllNotifications(List<DownloadProgress> progresses) {
+    private void onFlushProgress(String id) {
         assert ThreadUtils.runningOnUiThread();
-        for (int i = 0; i < progresses.size(); ++i) {
-            updateNotification(progresses.get(i));
-        }
+        DownloadProgress progress = mDownloadProgressMap.get(id);
+        if (progress != null && progress.mIsUpdated) updateNotification(progress);
     }
 
     /**
@@ -505,8 +507,16 @@ public class DownloadManagerService
                 assert false;
                 break;
         }
-        if (notificationUpdateScheduled) progress.mIsUpdated = false;
-        if (removeFromDownloadProgressMap) mDownloadProgressMap.remove(item.getId());
+        if (notificationUpdateScheduled) {
+            progress.mIsUpdated = false;
+        } else {
+            // Retry with the next batch of notification updates.
+            mProgressAggregator.requestUpdate(item.getId());
+        }
+        if (removeFromDownloadProgressMap) {
+            mDownloadProgressMap.remove(item.getId());
+            mProgressAggregator.remove(item.getId());
+        }
     }
 
     /**
@@ -605,32 +615,11 @@ public class DownloadManagerService
     }
 
     /**
-     * Schedule an update if there is no update scheduled.
+     * @return The {@link DownloadProgressAggregator} that batches notification updates.
      */
     @VisibleForTesting
-    protected void scheduleUpdateIfNeeded() {
-        if (mIsUIUpdateScheduled) return;
-
-        mIsUIUpdateScheduled = true;
-        final List<DownloadProgress> progressPendingUpdate = new ArrayList<DownloadProgress>();
-        Iterator<DownloadProgress> iter = mDownloadProgressMap.values().iterator();
-        while (iter.hasNext()) {
-            DownloadProgress progress = iter.next();
-            if (progress.mIsUpdated) {
-                progressPendingUpdate.add(progress);
-            }
-        }
-        if (progressPendingUpdate.isEmpty()) {
-            mIsUIUpdateScheduled = false;
-            return;
-        }
-        updateAllNotifications(progressPendingUpdate);
-
-        Runnable scheduleNextUpdateTask = () -> {
-            mIsUIUpdateScheduled = false;
-            scheduleUpdateIfNeeded();
-        };
-        mHandler.postDelayed(scheduleNextUpdateTask, mUpdateDelayInMillis);
+    DownloadProgressAggregator getProgressAggregatorForTesting() {
+        return mProgressAggregator;
     }
 
     /**
@@ -1336,6 +1325,7 @@ public class DownloadManagerService
      */
     private void removeDownloadProgress(String guid) {
         mDownloadProgressMap.remove(guid);
+        mProgressAggregator.remove(guid);
         removeAutoResumableDownload(guid);
         sFirstSeenDownloadIds.remove(guid);
     }
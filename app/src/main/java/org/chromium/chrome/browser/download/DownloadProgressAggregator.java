@@ -0,0 +1,180 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.download;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.components.offline_items_collection.OfflineItem.Progress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates download progress updates before they are sent to the {@link DownloadNotifier}.
+ * Only downloads that were updated since the last flush are tracked. Progress updates that do not
+ * change what the notification shows are dropped, and the remaining updates are flushed together
+ * at most once per update interval. Nothing is posted while all downloads are idle.
+ */
+class DownloadProgressAggregator {
+    /** Minimum change in percentage before a determinate progress update is shown. */
+    @VisibleForTesting
+    static final int MIN_PERCENT_CHANGE = 1;
+
+    /** Minimum change in received bytes before an indeterminate progress update is shown. */
+    @VisibleForTesting
+    static final long MIN_BYTES_CHANGE = 512 * 1024;
+
+    /** Receives the batched updates. */
+    interface Delegate {
+        /**
+         * Called when the notification for a download should be updated.
+         * @param id The id of the download.
+         */
+        void onFlushProgress(String id);
+    }
+
+    /** Progress values that were last sent for a download. */
+    private static class EmittedProgress {
+        final int mPercentage;
+        final long mBytesReceived;
+
+        EmittedProgress(int percentage, long bytesReceived) {
+            mPercentage = percentage;
+            mBytesReceived = bytesReceived;
+        }
+    }
+
+    private final Delegate mDelegate;
+    private final Handler mHandler;
+    private final long mUpdateDelayInMillis;
+
+    // Downloads waiting for the next flush, mapped to their latest info. A null info means that
+    // the update should be sent regardless of how much the progress changed.
+    private final Map<String, DownloadInfo> mPendingUpdates = new LinkedHashMap<>();
+    private final Map<String, EmittedProgress> mEmittedProgress = new HashMap<>();
+    private final Runnable mFlushTask = this::onUpdateDelayExpired;
+
+    // Whether an update was flushed less than |mUpdateDelayInMillis| ago.
+    private boolean mIsWaitingForUpdateDelay;
+
+    private int mEmittedUpdateCount;
+    private int mSuppressedUpdateCount;
+
+    /**
+     * @param delegate The {@link Delegate} that updates the notifications.
+     * @param handler The {@link Handler} used to post delayed flushes.
+     * @param updateDelayInMillis The minimum delay between two flushes.
+     */
+    DownloadProgressAggregator(Delegate delegate, Handler handler, long updateDelayInMillis) {
+        mDelegate = delegate;
+        mHandler = handler;
+        mUpdateDelayInMillis = updateDelayInMillis;
+    }
+
+    /**
+     * Records a progress update for an in progress download. The update is only sent if the
+     * progress changed visibly since the last update that was sent.
+     * @param id The id of the download.
+     * @param info The latest information about the download.
+     */
+    void onProgressUpdated(String id, DownloadInfo info) {
+        addPendingUpdate(id, info);
+    }
+
+    /**
+     * Requests that the notification for a download is updated with the next flush, whether or
+     * not its progress changed.
+     * @param id The id of the download.
+     */
+    void requestUpdate(String id) {
+        addPendingUpdate(id, null);
+    }
+
+    /**
+     * Stops tracking a download, e.g. because it reached a terminal state.
+     * @param id The id of the download.
+     */
+    void remove(String id) {
+        mPendingUpdates.remove(id);
+        mEmittedProgress.remove(id);
+    }
+
+    /** @return The number of updates that were sent to the {@link Delegate}. */
+    @VisibleForTesting
+    int getEmittedUpdateCount() {
+        return mEmittedUpdateCount;
+    }
+
+    /** @return The number of updates that were coalesced or dropped. */
+    @VisibleForTesting
+    int getSuppressedUpdateCount() {
+        return mSuppressedUpdateCount;
+    }
+
+    private void addPendingUpdate(String id, @Nullable DownloadInfo info) {
+        ThreadUtils.assertOnUiThread();
+        if (mPendingUpdates.containsKey(id)) {
+            // The previous update for this download is replaced before it was shown.
+            mSuppressedUpdateCount++;
+            if (mPendingUpdates.get(id) == null) info = null;
+        }
+        mPendingUpdates.put(id, info);
+        if (!mIsWaitingForUpdateDelay) flush();
+    }
+
+    private void onUpdateDelayExpired() {
+        mIsWaitingForUpdateDelay = false;
+        if (!mPendingUpdates.isEmpty()) flush();
+    }
+
+    private void flush() {
+        List<String> idsToUpdate = new ArrayList<>(mPendingUpdates.size());
+        for (Map.Entry<String, DownloadInfo> entry : mPendingUpdates.entrySet()) {
+            DownloadInfo info = entry.getValue();
+            if (info != null && !isVisibleChange(mEmittedProgress.get(entry.getKey()), info)) {
+                mSuppressedUpdateCount++;
+                continue;
+            }
+            if (info != null) mEmittedProgress.put(entry.getKey(), createEmittedProgress(info));
+            idsToUpdate.add(entry.getKey());
+        }
+        // The delegate might request new updates while they are being flushed.
+        mPendingUpdates.clear();
+        if (idsToUpdate.isEmpty()) return;
+
+        // Start the delay before calling the delegate, so that the updates it requests, e.g. to
+        // retry a rejected update, are queued for the next flush instead of being flushed inline.
+        mIsWaitingForUpdateDelay = true;
+        mHandler.postDelayed(mFlushTask, mUpdateDelayInMillis);
+        for (int i = 0; i < idsToUpdate.size(); ++i) {
+            mEmittedUpdateCount++;
+            mDelegate.onFlushProgress(idsToUpdate.get(i));
+        }
+    }
+
+    private static EmittedProgress createEmittedProgress(DownloadInfo info) {
+        Progress progress = info.getProgress();
+        int percentage = progress == null || progress.isIndeterminate()
+                ? -1
+                : progress.getPercentage();
+        return new EmittedProgress(percentage, info.getBytesReceived());
+    }
+
+    private static boolean isVisibleChange(@Nullable EmittedProgress last, DownloadInfo info) {
+        if (last == null) return true;
+        Progress progress = info.getProgress();
+        if (progress != null && !progress.isIndeterminate()) {
+            return Math.abs(progress.getPercentage() - last.mPercentage) >= MIN_PERCENT_CHANGE;
+        }
+        return last.mPercentage != -1
+                || Math.abs(info.getBytesReceived() - last.mBytesReceived) >= MIN_BYTES_CHANGE;
+    }
+}
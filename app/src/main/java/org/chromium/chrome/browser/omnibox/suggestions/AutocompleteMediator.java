@@ -24,6 +24,7 @@ import android.widget.TextView;
 import org.chromium.base.Log;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.VisibleForTesting;
+import org.chromium.base.metrics.RecordHistogram;
 import org.chromium.base.metrics.RecordUserAction;
 import org.chromium.chrome.R;
 import org.chromium.chrome.browser.init.AsyncInitializationActivity;
@@ -52,10 +53,14 @@ import org.chromium.ui.base.WindowAndroid;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles updating the model state for the currently visible omnibox suggestions.
@@ -67,12 +72,28 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
     // with the new characters.
     private static final long OMNIBOX_SUGGESTION_START_DELAY_MS = 30;
 
+    // Maximum number of suggestion models kept around for reuse once they are no longer shown.
+    private static final int MAX_RECYCLED_MODELS = 16;
+
+    // Maximum number of answer lines whose spannables are kept around for reuse.
+    private static final int MAX_CACHED_ANSWER_LINES = 16;
+
     private final Context mContext;
     private final AutocompleteDelegate mDelegate;
     private final UrlBarEditingTextStateProvider mUrlBarEditingTextProvider;
     private final PropertyModel mListPropertyModel;
     private final List<Pair<OmniboxSuggestion, PropertyModel>> mCurrentModels;
     private final Map<String, List<PropertyModel>> mPendingAnswerRequestUrls;
+    private final Deque<PropertyModel> mRecycledModels = new ArrayDeque<>();
+    private final Map<SuggestionAnswer.ImageLine, Spannable> mAnswerSpannables =
+            new LinkedHashMap<SuggestionAnswer.ImageLine, Spannable>(
+                    MAX_CACHED_ANSWER_LINES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<SuggestionAnswer.ImageLine, Spannable> eldest) {
+                    return size() > MAX_CACHED_ANSWER_LINES;
+                }
+            };
     private final AnswersImageFetcher mImageFetcher;
     private final List<Runnable> mDeferredNativeRunnables = new ArrayList<Runnable>();
     private final Handler mHandler;
@@ -106,6 +127,17 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
      */
     private String mUrlTextAfterSuggestionsReceived;
 
+    /**
+     * The user text the current models were populated for. Parts of a text suggestion, such as its
+     * highlighting, depend on it, so models are only kept across updates while it does not change.
+     */
+    private String mCurrentModelsUserText;
+
+    // Time spent on the UI thread applying the suggestions received since the last keystroke.
+    private long mSuggestionsUpdateTimeNanos;
+    // Number of suggestion models that were kept or recycled rather than created.
+    private int mReusedModelCount;
+
     private Runnable mRequestSuggestions;
     private DeferredOnSelectionRunnable mDeferredOnSelection;
 
@@ -139,7 +171,11 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
      * Clear and notify observers that all suggestions are gone.
      */
     public void clearSuggestions() {
+        for (int i = 0; i < mCurrentModels.size(); i++) {
+            recycleModel(mCurrentModels.get(i).second);
+        }
         mCurrentModels.clear();
+        mCurrentModelsUserText = null;
         notifyPropertyModelsChanged();
     }
 
@@ -171,6 +207,51 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
         mListPropertyModel.set(SuggestionListProperties.SUGGESTION_MODELS, models);
     }
 
+    /**
+     * @return A model to populate for a new suggestion, reusing a recycled one when possible.
+     */
+    private PropertyModel obtainModel() {
+        PropertyModel model = mRecycledModels.poll();
+        if (model == null) return new PropertyModel(SuggestionViewProperties.ALL_KEYS);
+
+        mReusedModelCount++;
+        // Answer suggestions only set the image once it has been fetched.
+        model.set(SuggestionViewProperties.ANSWER_IMAGE, null);
+        return model;
+    }
+
+    /**
+     * Keeps a model that is no longer shown around so it can be used for a later suggestion.
+     * Models waiting for an answer image are dropped, as the image would be applied to whichever
+     * suggestion the model is reused for.
+     */
+    private void recycleModel(PropertyModel model) {
+        if (mRecycledModels.size() >= MAX_RECYCLED_MODELS) return;
+        for (List<PropertyModel> models : mPendingAnswerRequestUrls.values()) {
+            if (models.contains(model)) return;
+        }
+        mRecycledModels.add(model);
+    }
+
+    /**
+     * Finds a model in {@code oldModels} that can be kept as is for a new suggestion.
+     * @param oldModels The models that were shown before the update and were not reused yet.
+     * @param suggestion The new suggestion.
+     * @return The index of the reusable model in {@code oldModels}, or -1 if there is none.
+     */
+    private static int findReusableModel(
+            List<Pair<OmniboxSuggestion, PropertyModel>> oldModels, OmniboxSuggestion suggestion) {
+        for (int i = 0; i < oldModels.size(); i++) {
+            OmniboxSuggestion oldSuggestion = oldModels.get(i).first;
+            // The URL is not part of OmniboxSuggestion#equals(), but the model depends on it.
+            if (oldSuggestion.equals(suggestion)
+                    && TextUtils.equals(oldSuggestion.getUrl(), suggestion.getUrl())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private void populateModelForSuggestion(
             PropertyModel model, OmniboxSuggestion suggestion, int position) {
         maybeFetchAnswerIcon(suggestion, model);
@@ -372,13 +453,13 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
                 Pair.create(TypedValue.COMPLEX_UNIT_SP,
                         (float) AnswerTextBuilder.getMaxTextHeightSp(firstLine)));
         model.set(SuggestionViewProperties.TEXT_LINE_1_TEXT,
-                new SuggestionTextContainer(AnswerTextBuilder.buildSpannable(firstLine, density)));
+                new SuggestionTextContainer(getAnswerSpannable(firstLine, density)));
 
         model.set(SuggestionViewProperties.TEXT_LINE_2_SIZING,
                 Pair.create(TypedValue.COMPLEX_UNIT_SP,
                         (float) AnswerTextBuilder.getMaxTextHeightSp(secondLine)));
         model.set(SuggestionViewProperties.TEXT_LINE_2_TEXT,
-                new SuggestionTextContainer(AnswerTextBuilder.buildSpannable(secondLine, density)));
+                new SuggestionTextContainer(getAnswerSpannable(secondLine, density)));
         model.set(SuggestionViewProperties.TEXT_LINE_2_MAX_LINES, numAnswerLines);
         model.set(SuggestionViewProperties.TEXT_LINE_2_TEXT_COLOR,
                 SuggestionViewViewBinder.getStandardFontColor(
@@ -391,6 +472,19 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
         model.set(SuggestionViewProperties.SUGGESTION_ICON_TYPE, SuggestionIcon.MAGNIFIER);
     }
 
+    /**
+     * Answers are usually sent unchanged in every result batch while the user types, so the
+     * spannables built for them are cached.
+     */
+    private Spannable getAnswerSpannable(SuggestionAnswer.ImageLine line, float density) {
+        Spannable spannable = mAnswerSpannables.get(line);
+        if (spannable == null) {
+            spannable = AnswerTextBuilder.buildSpannable(line, density);
+            mAnswerSpannables.put(line, spannable);
+        }
+        return spannable;
+    }
+
     private void maybeFetchAnswerIcon(OmniboxSuggestion suggestion, PropertyModel model) {
         ThreadUtils.assertOnUiThread();
 
@@ -525,6 +619,9 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
             // a consequence the omnibox is unfocused).
             hideSuggestions();
             mImageFetcher.clearCache();
+            mAnswerSpannables.clear();
+            mRecycledModels.clear();
+            recordSuggestionsUpdateTime();
         }
     }
 
@@ -809,6 +906,7 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
 
         mIgnoreOmniboxItemSelection = true;
         cancelPendingAutocompleteStart();
+        recordSuggestionsUpdateTime();
 
         if (!mHasStartedNewOmniboxEditSession && mNativeInitialized) {
             mAutocomplete.resetSession();
@@ -880,9 +978,30 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
             mDeferredOnSelection.run();
             mDeferredOnSelection = null;
         }
+        long startTimeNanos = SystemClock.elapsedRealtimeNanos();
         String userText = mUrlBarEditingTextProvider.getTextWithoutAutocomplete();
         mUrlTextAfterSuggestionsReceived = userText + inlineAutocompleteText;
+        boolean changed = applySuggestions(newSuggestions, userText);
+        mSuggestionsUpdateTimeNanos += SystemClock.elapsedRealtimeNanos() - startTimeNanos;
+        if (!changed) return;
+
+        if (mListPropertyModel.get(SuggestionListProperties.VISIBLE) && getSuggestionCount() == 0) {
+            hideSuggestions();
+        }
+        mDelegate.onSuggestionsChanged(inlineAutocompleteText);
 
+        updateOmniboxSuggestionsVisibility();
+    }
+
+    /**
+     * Updates the current models to show a new list of suggestions. Models of suggestions that did
+     * not change are kept as they are, and the models of suggestions that are gone are recycled for
+     * the new ones.
+     * @param newSuggestions The suggestions to show.
+     * @param userText The text typed by the user, without inline autocompletion.
+     * @return Whether the suggestions changed.
+     */
+    private boolean applySuggestions(List<OmniboxSuggestion> newSuggestions, String userText) {
         if (mCurrentModels.size() == newSuggestions.size()) {
             boolean sameSuggestions = true;
             for (int i = 0; i < mCurrentModels.size(); i++) {
@@ -891,32 +1010,72 @@ class AutocompleteMediator implements OnSuggestionsReceivedListener {
                     break;
                 }
             }
-            if (sameSuggestions) return;
+            if (sameSuggestions) return false;
         }
 
         // Show the suggestion list.
         resetMaxTextWidths();
         // Ensure the list is fully replaced before broadcasting any change notifications.
         mPreventSuggestionListPropertyChanges = true;
+        List<Pair<OmniboxSuggestion, PropertyModel>> oldModels = new ArrayList<>(mCurrentModels);
+        // Text suggestions are highlighted based on the user text, so their models can only be
+        // kept if it did not change.
+        if (!TextUtils.equals(userText, mCurrentModelsUserText)) {
+            for (int i = 0; i < oldModels.size(); i++) recycleModel(oldModels.get(i).second);
+            oldModels.clear();
+        }
         mCurrentModels.clear();
+        mCurrentModelsUserText = userText;
+        List<Integer> positionsToPopulate = new ArrayList<>();
         for (int i = 0; i < newSuggestions.size(); i++) {
-            PropertyModel model = new PropertyModel(SuggestionViewProperties.ALL_KEYS);
             OmniboxSuggestion suggestion = newSuggestions.get(i);
+            int oldIndex = findReusableModel(oldModels, suggestion);
+            if (oldIndex == -1) {
+                mCurrentModels.add(Pair.create(suggestion, null));
+                positionsToPopulate.add(i);
+                continue;
+            }
+            PropertyModel model = oldModels.remove(oldIndex).second;
+            mReusedModelCount++;
             mCurrentModels.add(Pair.create(suggestion, model));
+            // The delegate captures the suggestion and its position, which may have changed.
+            model.set(SuggestionViewProperties.DELEGATE,
+                    createSuggestionViewDelegate(suggestion, i));
+        }
+        // Models that are no longer shown are recycled before the new suggestions are populated,
+        // so they can be reused right away.
+        for (int i = 0; i < oldModels.size(); i++) recycleModel(oldModels.get(i).second);
+        for (int i = 0; i < positionsToPopulate.size(); i++) {
+            int position = positionsToPopulate.get(i);
+            OmniboxSuggestion suggestion = newSuggestions.get(position);
+            PropertyModel model = obtainModel();
+            mCurrentModels.set(position, Pair.create(suggestion, model));
             // Before populating the model, add it to the list of current models.  If the suggestion
             // has an image and the image was already cached, it will be updated synchronously and
             // the model will only have the image populated if it is tracked as a current model.
-            populateModelForSuggestion(model, suggestion, i);
+            populateModelForSuggestion(model, suggestion, position);
         }
         mPreventSuggestionListPropertyChanges = false;
         notifyPropertyModelsChanged();
+        return true;
+    }
 
-        if (mListPropertyModel.get(SuggestionListProperties.VISIBLE) && getSuggestionCount() == 0) {
-            hideSuggestions();
-        }
-        mDelegate.onSuggestionsChanged(inlineAutocompleteText);
+    /**
+     * Records the time spent on the UI thread applying the suggestions received for the previous
+     * keystroke, if any.
+     */
+    private void recordSuggestionsUpdateTime() {
+        if (mSuggestionsUpdateTimeNanos == 0) return;
+        RecordHistogram.recordCustomTimesHistogram("Omnibox.SuggestionsUpdateTimePerKeystroke",
+                TimeUnit.NANOSECONDS.toMillis(mSuggestionsUpdateTimeNanos), 1,
+                TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS, 50);
+        mSuggestionsUpdateTimeNanos = 0;
+    }
 
-        updateOmniboxSuggestionsVisibility();
+    /** @return The number of suggestion models that were reused instead of being created. */
+    @VisibleForTesting
+    int getReusedModelCountForTesting() {
+        return mReusedModelCount;
     }
 
     /**
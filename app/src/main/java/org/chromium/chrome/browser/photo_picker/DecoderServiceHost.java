@@ -21,6 +21,7 @@ import org.chromium.base.Log;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.VisibleForTesting;
 import org.chromium.base.metrics.RecordHistogram;
+import org.chromium.base.task.AsyncTask;
 import org.chromium.chrome.browser.util.ConversionUtils;
 
 import java.io.File;
@@ -28,8 +29,10 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,6 +42,16 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
     // A tag for logging error messages.
     private static final String TAG = "ImageDecoderHost";
 
+    // The maximum number of requests sent to the service that have not been answered yet. Keeping
+    // a few requests in flight hides the round trip between two decodes.
+    @VisibleForTesting
+    static final int MAX_IN_FLIGHT_REQUESTS = 3;
+
+    // The priorities of a queued request, based on where its position is relative to the screen.
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+    private static final int PRIORITY_OFFSCREEN = 2;
+
     // The number of successful decodes, per batch.
     private int mSuccessfulDecodes;
 
@@ -48,6 +61,17 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
     // The number of out of memory failures during decoding, per batch.
     private int mFailedDecodesMemory;
 
+    // The number of requests served from the disk cache, per batch.
+    private int mDiskCacheHits;
+
+    // The number of requests sent to the service, per batch.
+    private int mServiceDecodes;
+
+    // When the host was created, and whether the time it took to show the first batch of images
+    // has been recorded.
+    private final long mCreationTime;
+    private boolean mFirstBatchRecorded;
+
     // A callback to use for testing to see if decoder is ready.
     static ServiceReadyCallback sReadyCallbackForTesting;
 
@@ -105,22 +129,47 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
         // The callback to use to communicate the results of the decoding.
         ImageDecodedCallback mCallback;
 
+        // The position of the image in the grid, or -1 if unknown.
+        int mPosition;
+
+        // The timestamp for when the request was queued.
+        long mQueuedTimestamp;
+
         // The timestamp for when the request was sent for decoding.
         long mTimestamp;
 
-        public DecoderServiceParams(String filePath, int size, ImageDecodedCallback callback) {
+        // Whether the request was cancelled after being sent for decoding.
+        boolean mCancelled;
+
+        // The last modified time of the file when it was sent for decoding, or 0 if unknown.
+        long mLastModified;
+
+        public DecoderServiceParams(
+                String filePath, int size, int position, ImageDecodedCallback callback) {
             mFilePath = filePath;
             mSize = size;
+            mPosition = position;
             mCallback = callback;
+            mQueuedTimestamp = SystemClock.elapsedRealtime();
         }
     }
 
-    // Map of file paths to decoder parameters in order of request.
+    // Map of file paths to decoder parameters of the requests waiting to be sent, in order of
+    // request.
     private LinkedHashMap<String, DecoderServiceParams> mRequests = new LinkedHashMap<>();
     LinkedHashMap<String, DecoderServiceParams> getRequests() {
         return mRequests;
     }
 
+    // Map of file paths to decoder parameters of the requests sent to the service.
+    private final Map<String, DecoderServiceParams> mInFlightRequests = new HashMap<>();
+
+    // The range of grid positions currently on screen, and how many positions on either side of
+    // it are decoded ahead of time.
+    private int mFirstVisiblePosition = -1;
+    private int mLastVisiblePosition = -1;
+    private int mPrefetchDistance;
+
     // The callbacks used to notify the clients when the service is ready.
     List<ServiceReadyCallback> mCallbacks = new ArrayList<ServiceReadyCallback>();
 
@@ -129,6 +178,9 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
 
     private final Context mContext;
 
+    // The thumbnails decoded in previous sessions.
+    private final ThumbnailDiskCache mDiskCache;
+
     /**
      * The DecoderServiceHost constructor.
      * @param callback The callback to use when communicating back to the client.
@@ -139,6 +191,12 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
             mCallbacks.add(sReadyCallbackForTesting);
         }
         mContext = context;
+        mCreationTime = SystemClock.elapsedRealtime();
+
+        mDiskCache = new ThumbnailDiskCache(
+                new File(context.getCacheDir(), ThumbnailDiskCache.DIRECTORY_NAME),
+                ThumbnailDiskCache.DEFAULT_MAX_BYTES);
+        mDiskCache.initializeInBackground();
     }
 
     /**
@@ -170,20 +228,71 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
      * @param callback The callback to use to communicate the decoding results.
      */
     public void decodeImage(String filePath, int size, ImageDecodedCallback callback) {
-        DecoderServiceParams params = new DecoderServiceParams(filePath, size, callback);
+        decodeImage(filePath, size, -1, callback);
+    }
+
+    /**
+     * Accepts a request to decode a single image shown at a given position in the grid. Requests
+     * for images on screen are sent to the service before the others.
+     * @param filePath The path to the file to decode.
+     * @param size The requested size (width and height) of the resulting bitmap.
+     * @param position The position of the image in the grid, or -1 if unknown.
+     * @param callback The callback to use to communicate the decoding results.
+     */
+    public void decodeImage(
+            String filePath, int size, int position, ImageDecodedCallback callback) {
+        DecoderServiceParams inFlight = mInFlightRequests.get(filePath);
+        if (inFlight != null && inFlight.mSize == size) {
+            // The image is already being decoded, so its result can be used for this request.
+            inFlight.mCallback = callback;
+            inFlight.mPosition = position;
+            inFlight.mCancelled = false;
+            return;
+        }
+
+        DecoderServiceParams params = new DecoderServiceParams(filePath, size, position, callback);
         mRequests.put(filePath, params);
-        if (mRequests.size() == 1) dispatchNextDecodeImageRequest();
+        dispatchNextDecodeImageRequest();
     }
 
     /**
-     * Dispatches the next image for decoding (from the queue).
+     * Updates the range of grid positions on screen, which is used to pick the next requests to
+     * send for decoding.
+     * @param firstVisiblePosition The first position on screen.
+     * @param lastVisiblePosition The last position on screen.
+     * @param prefetchDistance How many positions before and after the screen are decoded next.
+     */
+    public void setVisibleRange(
+            int firstVisiblePosition, int lastVisiblePosition, int prefetchDistance) {
+        mFirstVisiblePosition = firstVisiblePosition;
+        mLastVisiblePosition = lastVisiblePosition;
+        mPrefetchDistance = prefetchDistance;
+    }
+
+    /**
+     * Dispatches the next images for decoding (from the queue), until there are
+     * {@link #MAX_IN_FLIGHT_REQUESTS} requests in flight.
      */
     private void dispatchNextDecodeImageRequest() {
-        if (mRequests.entrySet().iterator().hasNext()) {
-            DecoderServiceParams params = mRequests.entrySet().iterator().next().getValue();
+        while (mInFlightRequests.size() < MAX_IN_FLIGHT_REQUESTS) {
+            DecoderServiceParams params = takeHighestPriorityRequest();
+            if (params == null) break;
+
             params.mTimestamp = SystemClock.elapsedRealtime();
-            dispatchDecodeImageRequest(params.mFilePath, params.mSize);
-        } else {
+            RecordHistogram.recordTimesHistogram("Android.PhotoPicker.RequestQueueTime",
+                    params.mTimestamp - params.mQueuedTimestamp, TimeUnit.MILLISECONDS);
+            mInFlightRequests.put(params.mFilePath, params);
+            if (mDiskCache.mayContain(params.mFilePath, params.mSize)) {
+                new DiskCacheReadTask(params.mFilePath, params.mSize)
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            } else {
+                mServiceDecodes++;
+                dispatchDecodeImageRequest(params.mFilePath, params.mSize);
+            }
+        }
+
+        if (mRequests.isEmpty() && mInFlightRequests.isEmpty()) {
+            recordBatchFinished();
             int totalRequests = mSuccessfulDecodes + mFailedDecodesRuntime + mFailedDecodesMemory;
             if (totalRequests > 0) {
                 int runtimeFailures = 100 * mFailedDecodesRuntime / totalRequests;
@@ -201,6 +310,60 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
         }
     }
 
+    /**
+     * Records how long it took for the images requested when the picker opened to be shown, and
+     * how many of the images of the batch came from the disk cache.
+     */
+    private void recordBatchFinished() {
+        int totalImages = mDiskCacheHits + mServiceDecodes;
+        if (totalImages == 0) return;
+
+        if (!mFirstBatchRecorded) {
+            mFirstBatchRecorded = true;
+            RecordHistogram.recordMediumTimesHistogram("Android.PhotoPicker.TimeToFullGrid",
+                    SystemClock.elapsedRealtime() - mCreationTime, TimeUnit.MILLISECONDS);
+        }
+        RecordHistogram.recordPercentageHistogram(
+                "Android.PhotoPicker.DiskCacheHitRate", 100 * mDiskCacheHits / totalImages);
+        mDiskCacheHits = 0;
+        mServiceDecodes = 0;
+    }
+
+    /**
+     * Removes the queued request with the highest priority from the queue. Requests with the same
+     * priority are taken in the order they were made.
+     * @return The request, or null if there is none that can be sent.
+     */
+    @Nullable
+    private DecoderServiceParams takeHighestPriorityRequest() {
+        DecoderServiceParams best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        for (DecoderServiceParams params : mRequests.values()) {
+            // Wait for an older decode of the same file to finish first.
+            if (mInFlightRequests.containsKey(params.mFilePath)) continue;
+            int priority = getPriority(params.mPosition);
+            if (priority < bestPriority) {
+                best = params;
+                bestPriority = priority;
+                if (priority == PRIORITY_VISIBLE) break;
+            }
+        }
+        if (best != null) mRequests.remove(best.mFilePath);
+        return best;
+    }
+
+    private int getPriority(int position) {
+        if (position < 0 || mFirstVisiblePosition < 0) return PRIORITY_VISIBLE;
+        if (position >= mFirstVisiblePosition && position <= mLastVisiblePosition) {
+            return PRIORITY_VISIBLE;
+        }
+        if (position >= mFirstVisiblePosition - mPrefetchDistance
+                && position <= mLastVisiblePosition + mPrefetchDistance) {
+            return PRIORITY_PREFETCH;
+        }
+        return PRIORITY_OFFSCREEN;
+    }
+
     @Override
     public void onDecodeImageDone(final Bundle payload) {
         // As per the Android documentation, AIDL callbacks can (and will) happen on any thread, so
@@ -237,8 +400,11 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
      * @param decodeTime The length of time it took to decode the bitmap.
      */
     public void closeRequest(String filePath, @Nullable Bitmap bitmap, long decodeTime) {
-        DecoderServiceParams params = getRequests().get(filePath);
-        if (params != null) {
+        DecoderServiceParams params = mInFlightRequests.remove(filePath);
+        if (params != null && bitmap != null && decodeTime != -1) {
+            mDiskCache.putInBackground(filePath, params.mSize, params.mLastModified, bitmap);
+        }
+        if (params != null && !params.mCancelled) {
             long endRpcCall = SystemClock.elapsedRealtime();
             RecordHistogram.recordTimesHistogram("Android.PhotoPicker.RequestProcessTime",
                     endRpcCall - params.mTimestamp, TimeUnit.MILLISECONDS);
@@ -253,7 +419,6 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
                 RecordHistogram.recordCustomCountHistogram(
                         "Android.PhotoPicker.ImageByteCount", sizeInKB, 1, 100000, 50);
             }
-            getRequests().remove(filePath);
         }
         dispatchNextDecodeImageRequest();
     }
@@ -274,6 +439,10 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
         // contents, so we need to obtain a file descriptor to pass over.
         StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskReads();
         try {
+            // Read before opening the file, so that a thumbnail is never cached under the time
+            // of a later version of the file than the one decoded.
+            DecoderServiceParams params = mInFlightRequests.get(filePath);
+            if (params != null) params.mLastModified = file.lastModified();
             try {
                 inputFile = new FileInputStream(file);
                 FileDescriptor fd = inputFile.getFD();
@@ -310,11 +479,48 @@ public class DecoderServiceHost extends IDecoderServiceCallback.Stub {
     }
 
     /**
-     * Cancels a request to decode an image (if it hasn't already been dispatched).
+     * Cancels a request to decode an image. If it has already been dispatched, its result is
+     * dropped.
      * @param filePath The path to the image to cancel decoding.
      */
     public void cancelDecodeImage(String filePath) {
         mRequests.remove(filePath);
+        DecoderServiceParams inFlight = mInFlightRequests.get(filePath);
+        if (inFlight != null) inFlight.mCancelled = true;
+    }
+
+    /**
+     * Reads a thumbnail from the disk cache, and sends the request to the service if it is not
+     * found there.
+     */
+    private class DiskCacheReadTask extends AsyncTask<Bitmap> {
+        private final String mFilePath;
+        private final int mSize;
+
+        DiskCacheReadTask(String filePath, int size) {
+            mFilePath = filePath;
+            mSize = size;
+        }
+
+        @Override
+        protected Bitmap doInBackground() {
+            return mDiskCache.get(mFilePath, mSize);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (bitmap != null) {
+                mDiskCacheHits++;
+                closeRequest(mFilePath, bitmap, -1);
+                return;
+            }
+            if (!mBound) {
+                mInFlightRequests.remove(mFilePath);
+                return;
+            }
+            mServiceDecodes++;
+            dispatchDecodeImageRequest(mFilePath, mSize);
+        }
     }
 
     /** Sets a callback to use when the service is ready. For testing use only. */
@@ -7,6 +7,7 @@ package org.chromium.chrome.browser.photo_picker;
 import android.Manifest;
 import android.content.Intent;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 
 import org.chromium.base.ThreadUtils;
@@ -18,11 +19,20 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
- * A worker task to enumerate image files on disk.
+ * A worker task to enumerate image files on disk. While the directories are being walked, the
+ * most recently modified files found so far are sent to the client as a first page, so that the
+ * grid can be populated before the whole walk is done. The complete list follows at the end.
  */
 class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
+    /** The number of files sent in the first page, enough to fill a screen. */
+    static final int FIRST_PAGE_SIZE = 64;
+
+    // The minimum time between two first page updates.
+    private static final long PAGE_UPDATE_INTERVAL_MS = 250;
+
     /**
      * An interface to use to communicate back the results to the client.
      */
@@ -32,6 +42,14 @@ class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
          * @param files The list of images.
          */
         void filesEnumeratedCallback(List<PickerBitmap> files);
+
+        /**
+         * A callback to define to receive the most recently modified images found so far, while
+         * the enumeration is still in progress. It can be called several times, each time with a
+         * list that replaces the previous one, before {@link #filesEnumeratedCallback}.
+         * @param files The list of images, including the camera and gallery tiles.
+         */
+        default void firstPageEnumeratedCallback(List<PickerBitmap> files) {}
     }
 
     private final WindowAndroid mWindowAndroid;
@@ -45,6 +63,18 @@ class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
     // The camera directory undir DCIM.
     private static final String SAMPLE_DCIM_SOURCE_SUB_DIRECTORY = "Camera";
 
+    // The most recently modified files found so far, the oldest of them at the head. Only used on
+    // the background thread.
+    private final PriorityQueue<PickerBitmap> mFirstPage =
+            new PriorityQueue<>(FIRST_PAGE_SIZE, Collections.reverseOrder());
+
+    // The tiles shown before the files, created once so that every page shares them.
+    private final List<PickerBitmap> mLeadingTiles = new ArrayList<>();
+
+    // Whether |mFirstPage| changed since it was last sent, and when it was last sent.
+    private boolean mFirstPageChanged;
+    private long mLastPageUpdateTime;
+
     /**
      * A FileEnumWorkerTask constructor.
      * @param windowAndroid The window wrapper associated with the current activity.
@@ -82,14 +112,47 @@ class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
             if (file.isDirectory()) {
                 if (!traverseDir(file, pickerBitmaps)) return false;
             } else {
-                pickerBitmaps.add(new PickerBitmap(
-                        file.getPath(), file.lastModified(), PickerBitmap.TileTypes.PICTURE));
+                PickerBitmap bitmap = new PickerBitmap(
+                        file.getPath(), file.lastModified(), PickerBitmap.TileTypes.PICTURE);
+                pickerBitmaps.add(bitmap);
+                addToFirstPage(bitmap);
             }
         }
 
         return true;
     }
 
+    /**
+     * Keeps track of |bitmap| if it is one of the {@link #FIRST_PAGE_SIZE} most recently modified
+     * files found so far, and sends the first page to the client if it is due for an update.
+     */
+    private void addToFirstPage(PickerBitmap bitmap) {
+        if (mFirstPage.size() < FIRST_PAGE_SIZE) {
+            mFirstPage.add(bitmap);
+            mFirstPageChanged = true;
+        } else if (bitmap.compareTo(mFirstPage.peek()) < 0) {
+            mFirstPage.poll();
+            mFirstPage.add(bitmap);
+            mFirstPageChanged = true;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (!mFirstPageChanged || mFirstPage.size() < FIRST_PAGE_SIZE
+                || now - mLastPageUpdateTime < PAGE_UPDATE_INTERVAL_MS) {
+            return;
+        }
+        mFirstPageChanged = false;
+        mLastPageUpdateTime = now;
+
+        final List<PickerBitmap> page = new ArrayList<>(mLeadingTiles.size() + mFirstPage.size());
+        page.addAll(mFirstPage);
+        Collections.sort(page);
+        page.addAll(0, mLeadingTiles);
+        ThreadUtils.postOnUiThread(() -> {
+            if (!isCancelled()) mCallback.firstPageEnumeratedCallback(page);
+        });
+    }
+
     /**
      * Enumerates (in the background) the image files on disk. Called on a non-UI thread
      * @param params Ignored, do not use.
@@ -101,6 +164,17 @@ class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
 
         if (isCancelled()) return null;
 
+        boolean hasCameraAppAvailable =
+                mWindowAndroid.canResolveActivity(new Intent(MediaStore.ACTION_IMAGE_CAPTURE));
+        boolean hasOrCanRequestCameraPermission =
+                mWindowAndroid.hasPermission(Manifest.permission.CAMERA)
+                || mWindowAndroid.canRequestPermission(Manifest.permission.CAMERA);
+        if (hasCameraAppAvailable && hasOrCanRequestCameraPermission) {
+            mLeadingTiles.add(new PickerBitmap("", 0, PickerBitmap.TileTypes.CAMERA));
+        }
+        mLeadingTiles.add(new PickerBitmap("", 0, PickerBitmap.TileTypes.GALLERY));
+        mLastPageUpdateTime = SystemClock.elapsedRealtime();
+
         List<PickerBitmap> pickerBitmaps = new ArrayList<>();
 
         // TODO(finnur): Figure out which directories to scan and stop hard coding "Camera" above.
@@ -115,16 +189,7 @@ class FileEnumWorkerTask extends AsyncTask<List<PickerBitmap>> {
         }
 
         Collections.sort(pickerBitmaps);
-
-        pickerBitmaps.add(0, new PickerBitmap("", 0, PickerBitmap.TileTypes.GALLERY));
-        boolean hasCameraAppAvailable =
-                mWindowAndroid.canResolveActivity(new Intent(MediaStore.ACTION_IMAGE_CAPTURE));
-        boolean hasOrCanRequestCameraPermission =
-                mWindowAndroid.hasPermission(Manifest.permission.CAMERA)
-                || mWindowAndroid.canRequestPermission(Manifest.permission.CAMERA);
-        if (hasCameraAppAvailable && hasOrCanRequestCameraPermission) {
-            pickerBitmaps.add(0, new PickerBitmap("", 0, PickerBitmap.TileTypes.CAMERA));
-        }
+        pickerBitmaps.addAll(0, mLeadingTiles);
 
         return pickerBitmaps;
     }
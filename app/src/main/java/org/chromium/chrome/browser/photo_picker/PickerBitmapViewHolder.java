@@ -110,7 +110,7 @@ public class PickerBitmapViewHolder
             mItemView.initialize(mBitmapDetails, null, true);
         }
 
-        mCategoryView.getDecoderServiceHost().decodeImage(filePath, size, this);
+        mCategoryView.getDecoderServiceHost().decodeImage(filePath, size, position, this);
         return PickerAdapter.DecodeActions.DECODE;
     }
 
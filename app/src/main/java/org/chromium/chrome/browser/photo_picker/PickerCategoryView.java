@@ -120,6 +120,9 @@ public class PickerCategoryView extends RelativeLayout
     // The timestap for the start of the enumeration of files on disk.
     private long mEnumStartTime;
 
+    // Whether files were shown before the enumeration finished.
+    private boolean mFirstPageShown;
+
     // Whether the connection to the service has been established.
     private boolean mServiceReady;
 
@@ -168,6 +171,12 @@ public class PickerCategoryView extends RelativeLayout
         mSpacingDecoration = new GridSpacingItemDecoration(mColumns, mPadding);
         mRecyclerView.addItemDecoration(mSpacingDecoration);
         mRecyclerView.setRecyclerListener(this);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                updateDecodePriorities();
+            }
+        });
 
         final long maxMemory = ConversionUtils.bytesToKilobytes(Runtime.getRuntime().maxMemory());
         mCacheSizeLarge = (int) (maxMemory / 2); // 1/2 of the available memory.
@@ -239,6 +248,17 @@ public class PickerCategoryView extends RelativeLayout
         processBitmaps();
     }
 
+    @Override
+    public void firstPageEnumeratedCallback(List<PickerBitmap> files) {
+        if (!mFirstPageShown) {
+            mFirstPageShown = true;
+            RecordHistogram.recordTimesHistogram("Android.PhotoPicker.FirstPageEnumerationTime",
+                    SystemClock.elapsedRealtime() - mEnumStartTime, TimeUnit.MILLISECONDS);
+        }
+        mPickerBitmaps = files;
+        processBitmaps();
+    }
+
     // DecoderServiceHost.ServiceReadyCallback:
 
     @Override
@@ -331,6 +351,18 @@ public class PickerCategoryView extends RelativeLayout
         executeAction(PhotoPickerListener.PhotoPickerAction.LAUNCH_CAMERA, null, ACTION_NEW_PHOTO);
     }
 
+    /**
+     * Tells the decoder which images are on screen, so that they are decoded first, followed by
+     * the images within one screen of them.
+     */
+    private void updateDecodePriorities() {
+        if (mDecoderServiceHost == null) return;
+        int first = mLayoutManager.findFirstVisibleItemPosition();
+        int last = mLayoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) return;
+        mDecoderServiceHost.setVisibleRange(first, last, last - first + 1);
+    }
+
     /**
      * Calculates image size and how many columns can fit on-screen.
      */
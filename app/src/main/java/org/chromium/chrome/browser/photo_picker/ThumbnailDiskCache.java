@@ -0,0 +1,269 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.photo_picker;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+
+import org.chromium.base.Log;
+import org.chromium.base.StreamUtil;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.base.task.PostTask;
+import org.chromium.base.task.SequencedTaskRunner;
+import org.chromium.base.task.TaskPriority;
+import org.chromium.base.task.TaskTraits;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A disk cache for the thumbnails decoded by the {@link DecoderService}, so that reopening the
+ * photo picker does not decode every visible photo again.
+ *
+ * Each thumbnail is stored in its own file, named after its file path and size:
+ *   Header:    magic, version, last modified time of the photo, thumbnail size, photo file path.
+ *   Thumbnail: length of the data, followed by the thumbnail compressed as a JPEG.
+ * Entries whose photo was modified since the thumbnail was stored are ignored and deleted. The
+ * least recently used entries are evicted once the cache grows over its byte budget; the order is
+ * kept across sessions through the modification time of the cache files.
+ *
+ * Entries are kept in separate files rather than packed in a single file: evicting an entry is a
+ * single delete instead of a compaction of the packed file, storing a thumbnail does not rewrite
+ * the others, and an interrupted write can only lose the entry being written.
+ *
+ * {@link #mayContain} can be called on any thread. {@link #initializeInBackground} and
+ * {@link #putInBackground} run on a sequence owned by the cache, so that encoding and writing
+ * thumbnails does not hold up other background work. All the other methods access the disk and
+ * must be called on a background thread.
+ */
+class ThumbnailDiskCache {
+    /** The name of the directory holding the cache, inside the app's cache directory. */
+    static final String DIRECTORY_NAME = "photo_picker_thumbnails";
+
+    /** Default maximum size of the cache on disk. */
+    static final long DEFAULT_MAX_BYTES = 20 * 1024 * 1024;
+
+    private static final String TAG = "PhotoPickerCache";
+
+    private static final int MAGIC = 0x50505443;
+    private static final int VERSION = 1;
+    private static final int JPEG_QUALITY = 85;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final SequencedTaskRunner mTaskRunner;
+
+    // Cache file names mapped to their size in bytes, least recently used first. Guarded by
+    // |this|, like |mTotalBytes|.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+
+    /**
+     * @param directory The directory holding the cache files.
+     * @param maxBytes The maximum size of the cache on disk.
+     */
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mTaskRunner = PostTask.createSequencedTaskRunner(
+                new TaskTraits().setTaskPriority(TaskPriority.USER_VISIBLE).setMayBlock(true));
+    }
+
+    /** Posts {@link #initialize} to the sequence of the cache. */
+    void initializeInBackground() {
+        mTaskRunner.postTask(this::initialize);
+    }
+
+    /** Posts {@link #put} to the sequence of the cache. */
+    void putInBackground(String filePath, int size, long lastModified, Bitmap bitmap) {
+        mTaskRunner.postTask(() -> put(filePath, size, lastModified, bitmap));
+    }
+
+    /**
+     * Reads the list of cache files. Until this is done, the cache appears empty.
+     */
+    void initialize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    if (!file.delete()) Log.e(TAG, "Unable to delete " + file);
+                    continue;
+                }
+                long length = file.length();
+                Long previous = mEntries.put(file.getName(), length);
+                mTotalBytes += length - (previous == null ? 0 : previous);
+            }
+        }
+        trim();
+    }
+
+    /**
+     * @param filePath The path to the photo.
+     * @param size The width and height of the thumbnail.
+     * @return Whether a thumbnail might be stored for the photo, without accessing the disk.
+     */
+    synchronized boolean mayContain(String filePath, int size) {
+        return mEntries.containsKey(getFileName(filePath, size));
+    }
+
+    /**
+     * Reads a thumbnail from the cache.
+     * @param filePath The path to the photo.
+     * @param size The width and height of the thumbnail.
+     * @return The thumbnail, or null if none is stored for the current version of the photo.
+     */
+    @Nullable
+    Bitmap get(String filePath, int size) {
+        String name = getFileName(filePath, size);
+        synchronized (this) {
+            if (!mEntries.containsKey(name)) return null;
+        }
+
+        File file = new File(mDirectory, name);
+        long lastModified = new File(filePath).lastModified();
+        Bitmap bitmap = null;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() == MAGIC && input.readInt() == VERSION
+                    && input.readLong() == lastModified && input.readInt() == size
+                    && filePath.equals(input.readUTF())) {
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file + ": " + e);
+        } finally {
+            StreamUtil.closeQuietly(input);
+        }
+
+        if (bitmap == null) {
+            remove(name);
+            return null;
+        }
+        synchronized (this) {
+            // Refresh the position of the entry in the access order.
+            mEntries.get(name);
+        }
+        // Keep the entry from being evicted in the next sessions too.
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Log.e(TAG, "Unable to update " + file);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores a thumbnail in the cache, evicting the least recently used ones if needed.
+     * @param filePath The path to the photo.
+     * @param size The width and height of the thumbnail.
+     * @param lastModified The last modified time of the photo when it was decoded, or 0 if
+     *         unknown, in which case the thumbnail is not stored.
+     * @param bitmap The thumbnail.
+     */
+    void put(String filePath, int size, long lastModified, Bitmap bitmap) {
+        if (lastModified == 0) return;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, compressed)) return;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        String name = getFileName(filePath, size);
+        File file = new File(mDirectory, name);
+        File tempFile = new File(mDirectory, name + TEMP_SUFFIX);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(tempFile));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(lastModified);
+            output.writeInt(size);
+            output.writeUTF(filePath);
+            output.writeInt(compressed.size());
+            compressed.writeTo(output);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + tempFile + ": " + e);
+            StreamUtil.closeQuietly(output);
+            if (!tempFile.delete()) Log.e(TAG, "Unable to delete " + tempFile);
+            return;
+        } finally {
+            StreamUtil.closeQuietly(output);
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Unable to rename " + tempFile);
+            if (!tempFile.delete()) Log.e(TAG, "Unable to delete " + tempFile);
+            return;
+        }
+
+        long length = file.length();
+        synchronized (this) {
+            Long previous = mEntries.put(name, length);
+            mTotalBytes += length - (previous == null ? 0 : previous);
+        }
+        trim();
+    }
+
+    /** @return The total size of the cache files, in bytes. */
+    @VisibleForTesting
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void remove(String name) {
+        synchronized (this) {
+            Long length = mEntries.remove(name);
+            if (length == null) return;
+            mTotalBytes -= length;
+        }
+        File file = new File(mDirectory, name);
+        if (file.exists() && !file.delete()) Log.e(TAG, "Unable to delete " + file);
+    }
+
+    private void trim() {
+        while (true) {
+            String name;
+            synchronized (this) {
+                if (mTotalBytes <= mMaxBytes || mEntries.isEmpty()) return;
+                Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+                Map.Entry<String, Long> eldest = iterator.next();
+                name = eldest.getKey();
+                mTotalBytes -= eldest.getValue();
+                iterator.remove();
+            }
+            File file = new File(mDirectory, name);
+            if (!file.delete()) Log.e(TAG, "Unable to delete " + file);
+        }
+    }
+
+    private static String getFileName(String filePath, int size) {
+        // Collisions are harmless: the header is checked against the photo when reading.
+        return Integer.toHexString(filePath.hashCode()) + "_" + size;
+    }
+}
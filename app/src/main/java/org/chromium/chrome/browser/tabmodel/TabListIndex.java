@@ -0,0 +1,277 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.tabmodel;
+
+import android.support.annotation.Nullable;
+
+import org.chromium.base.StreamUtil;
+import org.chromium.base.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only view of the tab metadata file written by {@link TabPersistentStore}.
+ *
+ * Since version 6 the file uses a fixed layout, with all integers stored big-endian:
+ *   Header:  version, tab count, incognito tab count, incognito active index, standard active
+ *            index.
+ *   Entries: one (tab id, URL offset, URL length) triple per tab.
+ *   URLs:    UTF-8 encoded URLs; offsets are relative to the start of this section.
+ *
+ * Every entry has the same size, so any tab can be looked up without parsing the ones before it.
+ * This allows the file to be memory mapped rather than copied and parsed as a whole; each URL is
+ * decoded from the mapping when it is first requested.
+ * Files written in the older stream based formats (versions 3 to 5) are converted to this layout
+ * when read, and are replaced by the new format the next time the tab list is saved.
+ */
+class TabListIndex {
+    /** The first version of the saved state file that uses this layout. */
+    static final int VERSION = 6;
+
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int ENTRY_SIZE = 3 * 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mIncognitoCount;
+    private final int mIncognitoActiveIndex;
+    private final int mStandardActiveIndex;
+    private final int mUrlSectionOffset;
+    private final String[] mUrls;
+
+    private TabListIndex(ByteBuffer buffer, int count, int incognitoCount,
+            int incognitoActiveIndex, int standardActiveIndex) {
+        mBuffer = buffer;
+        mCount = count;
+        mIncognitoCount = incognitoCount;
+        mIncognitoActiveIndex = incognitoActiveIndex;
+        mStandardActiveIndex = standardActiveIndex;
+        mUrlSectionOffset = HEADER_SIZE + count * ENTRY_SIZE;
+        mUrls = new String[count];
+    }
+
+    /** @return The number of tabs in the index. */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The number of incognito tabs, which come first in the index, or -1 if the file
+     *         predates this information being saved.
+     */
+    int getIncognitoCount() {
+        return mIncognitoCount;
+    }
+
+    /** @return The index of the active incognito tab, or a negative value if there is none. */
+    int getIncognitoActiveIndex() {
+        return mIncognitoActiveIndex;
+    }
+
+    /** @return The index of the active standard tab, or a negative value if there is none. */
+    int getStandardActiveIndex() {
+        return mStandardActiveIndex;
+    }
+
+    /**
+     * @param index The index of the tab, in [0, {@link #getCount()}).
+     * @return The id of the tab.
+     */
+    int getId(int index) {
+        return mBuffer.getInt(getEntryOffset(index));
+    }
+
+    /**
+     * Returns the URL of a tab, decoding it the first time it is requested.
+     * @param index The index of the tab, in [0, {@link #getCount()}).
+     * @return The URL of the tab.
+     */
+    String getUrl(int index) {
+        String url = mUrls[index];
+        if (url != null) return url;
+
+        int entryOffset = getEntryOffset(index);
+        int urlOffset = mUrlSectionOffset + mBuffer.getInt(entryOffset + 4);
+        int urlLength = mBuffer.getInt(entryOffset + 8);
+        byte[] bytes = new byte[urlLength];
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(urlOffset);
+        view.get(bytes);
+        url = new String(bytes, UTF_8);
+        mUrls[index] = url;
+        return url;
+    }
+
+    private int getEntryOffset(int index) {
+        assert index >= 0 && index < mCount;
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    /**
+     * Serializes a list of tabs into the fixed layout.
+     * @param ids                  The ids of all the tabs, incognito tabs first.
+     * @param urls                 The URLs of the tabs, in the same order as {@code ids}.
+     * @param incognitoCount       The number of incognito tabs, or -1 if unknown.
+     * @param incognitoActiveIndex The index of the active incognito tab.
+     * @param standardActiveIndex  The index of the active standard tab.
+     * @return The serialized index.
+     */
+    static byte[] serialize(List<Integer> ids, List<String> urls, int incognitoCount,
+            int incognitoActiveIndex, int standardActiveIndex) throws IOException {
+        assert ids.size() == urls.size();
+        int count = ids.size();
+        byte[][] encodedUrls = new byte[count][];
+        int urlSectionSize = 0;
+        for (int i = 0; i < count; i++) {
+            String url = urls.get(i);
+            encodedUrls[i] = url == null ? new byte[0] : url.getBytes(UTF_8);
+            urlSectionSize += encodedUrls[i].length;
+        }
+
+        ByteArrayOutputStream output =
+                new ByteArrayOutputStream(HEADER_SIZE + count * ENTRY_SIZE + urlSectionSize);
+        DataOutputStream stream = new DataOutputStream(output);
+        stream.writeInt(VERSION);
+        stream.writeInt(count);
+        stream.writeInt(incognitoCount);
+        stream.writeInt(incognitoActiveIndex);
+        stream.writeInt(standardActiveIndex);
+        int urlOffset = 0;
+        for (int i = 0; i < count; i++) {
+            stream.writeInt(ids.get(i));
+            stream.writeInt(urlOffset);
+            stream.writeInt(encodedUrls[i].length);
+            urlOffset += encodedUrls[i].length;
+        }
+        for (int i = 0; i < count; i++) {
+            stream.write(encodedUrls[i]);
+        }
+        stream.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Memory maps a tab metadata file. Files in an older format are read fully and converted.
+     * @param file The tab metadata file.
+     * @return The index, or null if the file is in a format that is no longer or not yet
+     *         supported.
+     */
+    @Nullable
+    static TabListIndex fromFile(File file) throws IOException {
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() >= 4) {
+                int version = buffer.getInt(0);
+                // Files written by a newer version cannot be interpreted.
+                if (version > VERSION) return null;
+                if (version == VERSION) return fromBuffer(buffer);
+            }
+
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return fromStream(new DataInputStream(new ByteArrayInputStream(data)));
+        } finally {
+            StreamUtil.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Reads a tab metadata file in any of the supported formats from a stream.
+     * @param stream The stream, positioned at the start of the file.
+     * @return The index, or null if the file is in a format that is no longer or not yet
+     *         supported.
+     */
+    @Nullable
+    static TabListIndex fromStream(DataInputStream stream) throws IOException {
+        final int version = stream.readInt();
+        // Files written by a newer version cannot be interpreted.
+        if (version > VERSION) return null;
+        if (version == VERSION) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(output);
+            data.writeInt(version);
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = stream.read(chunk)) != -1) data.write(chunk, 0, read);
+            data.close();
+            return fromBuffer(ByteBuffer.wrap(output.toByteArray()));
+        }
+
+        // We don't support restoring Tab data from before M18.
+        if (version < 3) return null;
+        // Older versions are missing newer data.
+        boolean skipIncognitoCount = version < 5;
+        boolean skipUrlRead = version < 4;
+
+        final int count = stream.readInt();
+        final int incognitoCount = skipIncognitoCount ? -1 : stream.readInt();
+        final int incognitoActiveIndex = stream.readInt();
+        final int standardActiveIndex = stream.readInt();
+        if (count < 0 || incognitoActiveIndex >= count || standardActiveIndex >= count) {
+            throw new IOException();
+        }
+
+        List<Integer> ids = new ArrayList<>(count);
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(stream.readInt());
+            urls.add(skipUrlRead ? "" : stream.readUTF());
+        }
+        byte[] data = serialize(
+                ids, urls, incognitoCount, incognitoActiveIndex, standardActiveIndex);
+        return fromBuffer(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wraps a buffer containing a tab metadata file in the fixed layout. Only the header and the
+     * entry table are validated; no URL is decoded.
+     * @param buffer The buffer, which must not be modified afterwards.
+     * @return The index.
+     */
+    @VisibleForTesting
+    static TabListIndex fromBuffer(ByteBuffer buffer) throws IOException {
+        int size = buffer.limit();
+        if (size < HEADER_SIZE || buffer.getInt(0) != VERSION) {
+            throw new IOException("Unsupported tab metadata file");
+        }
+        final int count = buffer.getInt(4);
+        final int incognitoCount = buffer.getInt(8);
+        final int incognitoActiveIndex = buffer.getInt(12);
+        final int standardActiveIndex = buffer.getInt(16);
+        if (count < 0 || count > (size - HEADER_SIZE) / ENTRY_SIZE
+                || incognitoActiveIndex >= count || standardActiveIndex >= count
+                || incognitoCount > count) {
+            throw new IOException("Corrupted tab metadata file header");
+        }
+
+        int urlSectionSize = size - HEADER_SIZE - count * ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            int entryOffset = HEADER_SIZE + i * ENTRY_SIZE;
+            int urlOffset = buffer.getInt(entryOffset + 4);
+            int urlLength = buffer.getInt(entryOffset + 8);
+            if (urlOffset < 0 || urlLength < 0 || urlOffset > urlSectionSize - urlLength) {
+                throw new IOException("Corrupted tab metadata file entry");
+            }
+        }
+        return new TabListIndex(
+                buffer, count, incognitoCount, incognitoActiveIndex, standardActiveIndex);
+    }
+}
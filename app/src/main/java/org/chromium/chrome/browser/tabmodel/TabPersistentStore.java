@@ -10,6 +10,7 @@ import android.os.StrictMode;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.util.AtomicFile;
+import android.support.v4.util.ObjectsCompat;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.util.SparseBooleanArray;
@@ -34,11 +35,7 @@ import org.chromium.chrome.browser.tab.Tab;
 import org.chromium.chrome.browser.tab.TabIdManager;
 import org.chromium.content_public.browser.LoadUrlParams;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -46,6 +43,8 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
@@ -63,8 +62,9 @@ public class TabPersistentStore extends TabPersister {
      * The current version of the saved state file.
      * Version 4: In addition to the tab's ID, save the tab's last URL.
      * Version 5: In addition to the total tab count, save the incognito tab count.
+     * Version 6: Fixed-layout binary index that can be memory mapped, see {@link TabListIndex}.
      */
-    private static final int SAVED_STATE_VERSION = 5;
+    private static final int SAVED_STATE_VERSION = TabListIndex.VERSION;
 
     private static final String BASE_STATE_FOLDER = "tabs";
 
@@ -79,6 +79,12 @@ public class TabPersistentStore extends TabPersister {
     private static final String PREF_HAS_COMPUTED_MAX_ID =
             "org.chromium.chrome.browser.tabmodel.TabPersistentStore.HAS_COMPUTED_MAX_ID";
 
+    /** Delay before a tab added to the save queue is saved, to coalesce successive changes. */
+    private static final long SAVE_TAB_DELAY_MS = 500;
+
+    /** The maximum number of TabState files that are read in parallel while restoring tabs. */
+    private static final int MAX_CONCURRENT_TAB_LOADS = 3;
+
     /** Prevents two TabPersistentStores from saving the same file simultaneously. */
     private static final Object SAVE_LIST_LOCK = new Object();
 
@@ -169,11 +175,17 @@ public class TabPersistentStore extends TabPersister {
     private final Deque<TabRestoreDetails> mTabsToRestore;
     private final Set<Integer> mTabIdsToRestore;
 
-    private LoadTabTask mLoadTabTask;
+    // Tabs whose TabState is being read, in the order in which they are restored.
+    private final Deque<LoadTabTask> mLoadTabTasks;
     private SaveTabTask mSaveTabTask;
     private SaveListTask mSaveListTask;
 
     private boolean mDestroyed;
+    private boolean mIsSaveNextTabScheduled;
+    private final Runnable mSaveNextTabRunnable = () -> {
+        mIsSaveNextTabScheduled = false;
+        if (!mDestroyed) saveNextTab();
+    };
     private boolean mCancelNormalTabLoads;
     private boolean mCancelIncognitoTabLoads;
 
@@ -182,8 +194,8 @@ public class TabPersistentStore extends TabPersister {
     private SparseIntArray mIncognitoTabsRestored;
 
     private SharedPreferences mPreferences;
-    private AsyncTask<DataInputStream> mPrefetchTabListTask;
-    private List<Pair<AsyncTask<DataInputStream>, String>> mPrefetchTabListToMergeTasks;
+    private AsyncTask<TabListIndex> mPrefetchTabListTask;
+    private List<Pair<AsyncTask<TabListIndex>, String>> mPrefetchTabListToMergeTasks;
     // A set of filenames which are tracked to merge.
     private Set<String> mMergedFileNames;
     private byte[] mLastSavedMetadata;
@@ -213,6 +225,7 @@ public class TabPersistentStore extends TabPersister {
         mTabsToSave = new ArrayDeque<>();
         mTabsToRestore = new ArrayDeque<>();
         mTabIdsToRestore = new HashSet<>();
+        mLoadTabTasks = new ArrayDeque<>();
         mObservers = new ObserverList<>();
         mObservers.addObserver(observer);
         mPreferences = ContextUtils.getAppSharedPreferences();
@@ -237,7 +250,7 @@ public class TabPersistentStore extends TabPersister {
 
         if (mPersistencePolicy.shouldMergeOnStartup()) {
             for (String mergedFileName : mPersistencePolicy.getStateToBeMergedFileNames()) {
-                AsyncTask<DataInputStream> task = startFetchTabListTask(executor, mergedFileName);
+                AsyncTask<TabListIndex> task = startFetchTabListTask(executor, mergedFileName);
                 mPrefetchTabListToMergeTasks.add(Pair.create(task, mergedFileName));
             }
         }
@@ -314,10 +327,7 @@ public class TabPersistentStore extends TabPersister {
                 int id = tab.getId();
                 boolean incognito = tab.isIncognito();
                 try {
-                    TabState state = tab.getState();
-                    if (state != null) {
-                        TabState.saveState(getTabStateFile(id, incognito), state, incognito);
-                    }
+                    saveTabState(id, incognito, tab.getState());
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "Out of memory error while attempting to save tab state.  Erasing.");
                     deleteTabState(id, incognito);
@@ -364,22 +374,23 @@ public class TabPersistentStore extends TabPersister {
             assert mTabModelSelector.getModel(true).getCount() == 0;
             assert mTabModelSelector.getModel(false).getCount() == 0;
             checkAndUpdateMaxTabId();
-            DataInputStream stream;
+            TabListIndex index;
             if (mPrefetchTabListTask != null) {
                 long timeWaitingForPrefetch = SystemClock.uptimeMillis();
-                stream = mPrefetchTabListTask.get();
+                index = mPrefetchTabListTask.get();
 
                 // Restore the tabs for this TabPeristentStore instance if the tab metadata file
                 // exists.
-                if (stream != null) {
+                if (index != null) {
                     logExecutionTime("LoadStateInternalPrefetchTime", timeWaitingForPrefetch);
                     mLoadInProgress = true;
                     readSavedStateFile(
-                            stream,
+                            index,
                             createOnTabStateReadCallback(mTabModelSelector.isIncognitoSelected(),
                                     false),
                             null,
                             false);
+                    prioritizeTabsToRestore();
                     logExecutionTime("LoadStateInternalTime", timeLoadingState);
                 }
             }
@@ -387,17 +398,17 @@ public class TabPersistentStore extends TabPersister {
             // Restore the tabs for the other TabPeristentStore instance if its tab metadata file
             // exists.
             if (mPrefetchTabListToMergeTasks.size() > 0) {
-                for (Pair<AsyncTask<DataInputStream>, String> mergeTask :
+                for (Pair<AsyncTask<TabListIndex>, String> mergeTask :
                         mPrefetchTabListToMergeTasks) {
                     time = SystemClock.uptimeMillis();
-                    AsyncTask<DataInputStream> task = mergeTask.first;
-                    stream = task.get();
-                    if (stream == null) continue;
+                    AsyncTask<TabListIndex> task = mergeTask.first;
+                    index = task.get();
+                    if (index == null) continue;
 
                     logExecutionTime("MergeStateInternalFetchTime", time);
                     mMergedFileNames.add(mergeTask.second);
                     mPersistencePolicy.setMergeInProgress(true);
-                    readSavedStateFile(stream,
+                    readSavedStateFile(index,
                             createOnTabStateReadCallback(mTabModelSelector.isIncognitoSelected(),
                                     mTabsToRestore.size() == 0 ? false : true),
                             null, true);
@@ -442,14 +453,14 @@ public class TabPersistentStore extends TabPersister {
             // Read the tab state metadata file.
             for (String mergeFileName : mPersistencePolicy.getStateToBeMergedFileNames()) {
                 long time = SystemClock.uptimeMillis();
-                DataInputStream stream =
+                TabListIndex index =
                         startFetchTabListTask(AsyncTask.SERIAL_EXECUTOR, mergeFileName).get();
-                if (stream == null) continue;
+                if (index == null) continue;
 
                 logExecutionTime("MergeStateInternalFetchTime", time);
                 mMergedFileNames.add(mergeFileName);
                 mPersistencePolicy.setMergeInProgress(true);
-                readSavedStateFile(stream,
+                readSavedStateFile(index,
                         createOnTabStateReadCallback(mTabModelSelector.isIncognitoSelected(), true),
                         null, true);
                 logExecutionTime("MergeStateInternalTime", time);
@@ -513,13 +524,22 @@ public class TabPersistentStore extends TabPersister {
 
     private void restoreTabStateInternal(String url, int id) {
         TabRestoreDetails tabToRestore = null;
-        if (mLoadTabTask != null) {
-            if ((url == null && mLoadTabTask.mTabToRestore.id == id)
-                    || (url != null && TextUtils.equals(mLoadTabTask.mTabToRestore.url, url))) {
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            if ((url == null && loadTabTask.mTabToRestore.id == id)
+                    || (url != null && TextUtils.equals(loadTabTask.mTabToRestore.url, url))) {
                 // Steal the task of restoring the tab from the active load tab task.
-                mLoadTabTask.cancel(false);
-                tabToRestore = mLoadTabTask.mTabToRestore;
-                loadNextTab();  // Queue up async task to load next tab after we're done here.
+                loadTabTask.cancel(false);
+                mLoadTabTasks.remove(loadTabTask);
+                tabToRestore = loadTabTask.mTabToRestore;
+                if (loadTabTask.mIsLoaded) {
+                    // The TabState has already been read, no need to read it again.
+                    restoreTab(tabToRestore, loadTabTask.mTabState, false);
+                    restoreLoadedTabsInOrder();
+                    return;
+                }
+                // Queue up async task to load next tab after we're done here.
+                restoreLoadedTabsInOrder();
+                break;
             }
         }
 
@@ -620,8 +640,10 @@ public class TabPersistentStore extends TabPersister {
 
         int tabId = tabToRestore.id;
         if (tabState != null) {
+            long time = SystemClock.uptimeMillis();
             mTabCreatorManager.getTabCreator(isIncognito).createFrozenTab(
                     tabState, tabToRestore.id, restoredIndex);
+            logExecutionTime("RestoreTabNativeTime", time);
         } else {
             if (NewTabPage.isNTPUrl(tabToRestore.url) && !setAsActive && !tabToRestore.fromMerge) {
                 Log.i(TAG, "Skipping restore of non-selected NTP.");
@@ -722,7 +744,12 @@ public class TabPersistentStore extends TabPersister {
 
     public void addTabToSaveQueue(Tab tab) {
         addTabToSaveQueueIfApplicable(tab);
-        saveNextTab();
+        if (mSaveTabTask != null || mIsSaveNextTabScheduled) return;
+
+        // Wait a little before saving so that successive changes to the same tab, e.g. while
+        // switching tabs, are written once.
+        mIsSaveNextTabScheduled = true;
+        ThreadUtils.postOnUiThreadDelayed(mSaveNextTabRunnable, SAVE_TAB_DELAY_MS);
     }
 
     /**
@@ -749,10 +776,12 @@ public class TabPersistentStore extends TabPersister {
         mTabsToSave.remove(tab);
         mTabsToRestore.remove(getTabToRestoreById(tab.getId()));
 
-        if (mLoadTabTask != null && mLoadTabTask.mTabToRestore.id == tab.getId()) {
-            mLoadTabTask.cancel(false);
-            mLoadTabTask = null;
-            loadNextTab();
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            if (loadTabTask.mTabToRestore.id != tab.getId()) continue;
+            loadTabTask.cancel(false);
+            mLoadTabTasks.remove(loadTabTask);
+            restoreLoadedTabsInOrder();
+            break;
         }
 
         if (mSaveTabTask != null && mSaveTabTask.mId == tab.getId()) {
@@ -785,7 +814,8 @@ public class TabPersistentStore extends TabPersister {
     public void destroy() {
         mDestroyed = true;
         mPersistencePolicy.destroy();
-        if (mLoadTabTask != null) mLoadTabTask.cancel(true);
+        for (LoadTabTask loadTabTask : mLoadTabTasks) loadTabTask.cancel(true);
+        mLoadTabTasks.clear();
         mTabsToSave.clear();
         mTabsToRestore.clear();
         if (mSaveTabTask != null) mSaveTabTask.cancel(false);
@@ -803,7 +833,9 @@ public class TabPersistentStore extends TabPersister {
 
         // The metadata file may be being written out before all of the Tabs have been restored.
         // Save that information out, as well.
-        if (mLoadTabTask != null) tabsToRestore.add(mLoadTabTask.mTabToRestore);
+        for (LoadTabTask loadTabTask : mLoadTabTasks) {
+            tabsToRestore.add(loadTabTask.mTabToRestore);
+        }
         for (TabRestoreDetails details : mTabsToRestore) {
             tabsToRestore.add(details);
         }
@@ -872,41 +904,32 @@ public class TabPersistentStore extends TabPersister {
         int numStillBeingLoaded = tabsBeingRestored == null ? 0 : tabsBeingRestored.size();
         int numTabsTotal = numStillBeingLoaded + numAlreadyLoaded;
 
-        // Save the index file containing the list of tabs to restore.
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        DataOutputStream stream = new DataOutputStream(output);
-        stream.writeInt(SAVED_STATE_VERSION);
-        stream.writeInt(numTabsTotal);
-        stream.writeInt(incognitoCount);
-        stream.writeInt(incognitoInfo.index);
-        stream.writeInt(standardInfo.index + incognitoCount);
         Log.d(TAG, "Serializing tab lists; counts: " + standardCount
                 + ", " + incognitoCount
                 + ", " + (tabsBeingRestored == null ? 0 : tabsBeingRestored.size()));
 
         // Save incognito state first, so when we load, if the incognito files are unreadable
         // we can fall back easily onto the standard selected tab.
-        for (int i = 0; i < incognitoCount; i++) {
-            stream.writeInt(incognitoInfo.ids.get(i));
-            stream.writeUTF(incognitoInfo.urls.get(i));
-        }
-        for (int i = 0; i < standardCount; i++) {
-            stream.writeInt(standardInfo.ids.get(i));
-            stream.writeUTF(standardInfo.urls.get(i));
-        }
+        List<Integer> ids = new ArrayList<>(numTabsTotal);
+        List<String> urls = new ArrayList<>(numTabsTotal);
+        ids.addAll(incognitoInfo.ids);
+        urls.addAll(incognitoInfo.urls);
+        ids.addAll(standardInfo.ids);
+        urls.addAll(standardInfo.urls);
 
         // Write out information about the tabs that haven't finished being loaded.
         // We shouldn't have to worry about Tab duplication because the tab details are processed
         // only on the UI Thread.
         if (tabsBeingRestored != null) {
             for (TabRestoreDetails details : tabsBeingRestored) {
-                stream.writeInt(details.id);
-                stream.writeUTF(details.url);
+                ids.add(details.id);
+                urls.add(details.url);
             }
         }
 
-        stream.close();
-        return output.toByteArray();
+        // Save the index file containing the list of tabs to restore.
+        return TabListIndex.serialize(ids, urls, incognitoCount, incognitoInfo.index,
+                standardInfo.index + incognitoCount);
     }
 
     private void saveListToFile(byte[] listData) {
@@ -1021,15 +1044,9 @@ public class TabPersistentStore extends TabPersister {
                         if (tabStateInfo != null) {
                             maxId = Math.max(maxId, tabStateInfo.first);
                         } else if (isStateFile(file.getName())) {
-                            DataInputStream stream = null;
-                            try {
-                                stream = new DataInputStream(
-                                        new BufferedInputStream(new FileInputStream(file)));
-                                maxId = Math.max(
-                                        maxId, readSavedStateFile(stream, null, null, false));
-                            } finally {
-                                StreamUtil.closeQuietly(stream);
-                            }
+                            maxId = Math.max(maxId,
+                                    readSavedStateFile(
+                                            TabListIndex.fromFile(file), null, null, false));
                         }
                     }
                 }
@@ -1054,37 +1071,47 @@ public class TabPersistentStore extends TabPersister {
             DataInputStream stream, @Nullable OnTabStateReadCallback callback,
             @Nullable SparseBooleanArray tabIds, boolean forMerge) throws IOException {
         if (stream == null) return 0;
+        return readSavedStateFile(TabListIndex.fromStream(stream), callback, tabIds, forMerge);
+    }
+
+    /**
+     * Extracts the tab information from a given tab list index. The active tabs are reported to
+     * {@code callback} first so that their restoration does not wait for the rest of the list.
+     *
+     * @param index    The index of the tab state file to be read.
+     * @param callback A callback to be streamed updates about the tab state information being read.
+     * @param tabIds   A mapping of tab ID to whether the tab is an off the record tab.
+     * @param forMerge Whether this state file was read as part of a merge.
+     * @return The next available tab ID based on the maximum ID referenced in this state file.
+     */
+    private static int readSavedStateFile(@Nullable TabListIndex index,
+            @Nullable OnTabStateReadCallback callback, @Nullable SparseBooleanArray tabIds,
+            boolean forMerge) {
+        if (index == null) return 0;
         long time = SystemClock.uptimeMillis();
         int nextId = 0;
-        boolean skipUrlRead = false;
-        boolean skipIncognitoCount = false;
-        final int version = stream.readInt();
-        if (version != SAVED_STATE_VERSION) {
-            // We don't support restoring Tab data from before M18.
-            if (version < 3) return 0;
-            // Older versions are missing newer data.
-            if (version < 5) skipIncognitoCount = true;
-            if (version < 4) skipUrlRead = true;
-        }
 
-        final int count = stream.readInt();
-        final int incognitoCount = skipIncognitoCount ? -1 : stream.readInt();
-        final int incognitoActiveIndex = stream.readInt();
-        final int standardActiveIndex = stream.readInt();
-        if (count < 0 || incognitoActiveIndex >= count || standardActiveIndex >= count) {
-            throw new IOException();
+        final int count = index.getCount();
+        final int incognitoCount = index.getIncognitoCount();
+        final int incognitoActiveIndex = index.getIncognitoActiveIndex();
+        final int standardActiveIndex = index.getStandardActiveIndex();
+
+        if (callback != null) {
+            if (standardActiveIndex >= 0) {
+                notifyDetailsRead(index, standardActiveIndex, callback);
+            }
+            if (incognitoActiveIndex >= 0 && incognitoActiveIndex != standardActiveIndex) {
+                notifyDetailsRead(index, incognitoActiveIndex, callback);
+            }
         }
 
         for (int i = 0; i < count; i++) {
-            int id = stream.readInt();
-            String tabUrl = skipUrlRead ? "" : stream.readUTF();
+            int id = index.getId(i);
             if (id >= nextId) nextId = id + 1;
             if (tabIds != null) tabIds.append(id, true);
 
-            Boolean isIncognito = (incognitoCount < 0) ? null : i < incognitoCount;
-            if (callback != null) {
-                callback.onDetailsRead(i, id, tabUrl, isIncognito,
-                        i == standardActiveIndex, i == incognitoActiveIndex);
+            if (callback != null && i != standardActiveIndex && i != incognitoActiveIndex) {
+                notifyDetailsRead(index, i, callback);
             }
         }
 
@@ -1101,6 +1128,14 @@ public class TabPersistentStore extends TabPersister {
         return nextId;
     }
 
+    private static void notifyDetailsRead(
+            TabListIndex index, int i, OnTabStateReadCallback callback) {
+        int incognitoCount = index.getIncognitoCount();
+        Boolean isIncognito = (incognitoCount < 0) ? null : i < incognitoCount;
+        callback.onDetailsRead(i, index.getId(i), index.getUrl(i), isIncognito,
+                i == index.getStandardActiveIndex(), i == index.getIncognitoActiveIndex());
+    }
+
     /**
      * Triggers the next save tab task.  Clients do not need to call this as it will be triggered
      * automatically by calling {@link #addTabToSaveQueue(Tab)}.
@@ -1222,10 +1257,57 @@ public class TabPersistentStore extends TabPersister {
         }
     }
 
+    /**
+     * Reorders the tabs read from this instance's metadata file so that the active tab comes first,
+     * followed by the tabs of the same model closest to it, which are the most likely to be visible
+     * in the tab switcher. Tabs are still inserted at their original index in the model.
+     */
+    private void prioritizeTabsToRestore() {
+        if (mTabsToRestore.size() < 2) return;
+        final TabRestoreDetails activeTab = mTabsToRestore.peekFirst();
+        if (activeTab.fromMerge) return;
+
+        List<TabRestoreDetails> tabsToRestore = new ArrayList<>(mTabsToRestore);
+        Collections.sort(tabsToRestore, new Comparator<TabRestoreDetails>() {
+            @Override
+            public int compare(TabRestoreDetails lhs, TabRestoreDetails rhs) {
+                return Integer.compare(getDistance(lhs), getDistance(rhs));
+            }
+
+            private int getDistance(TabRestoreDetails details) {
+                if (details == activeTab) return -1;
+                if (details.fromMerge
+                        || !ObjectsCompat.equals(details.isIncognito, activeTab.isIncognito)) {
+                    return Integer.MAX_VALUE;
+                }
+                return Math.abs(details.originalIndex - activeTab.originalIndex);
+            }
+        });
+        mTabsToRestore.clear();
+        mTabsToRestore.addAll(tabsToRestore);
+    }
+
+    /**
+     * Restores the tabs whose TabState has been read, in the order in which they were queued, and
+     * then starts reading the next ones.
+     */
+    private void restoreLoadedTabsInOrder() {
+        while (!mLoadTabTasks.isEmpty() && mLoadTabTasks.peekFirst().mIsLoaded) {
+            LoadTabTask loadTabTask = mLoadTabTasks.removeFirst();
+            TabRestoreDetails tabToRestore = loadTabTask.mTabToRestore;
+            TabState tabState = loadTabTask.mTabState;
+            boolean isIncognito = isIncognitoTabBeingRestored(tabToRestore, tabState);
+            boolean isLoadCancelled = (isIncognito && mCancelIncognitoTabLoads)
+                    || (!isIncognito && mCancelNormalTabLoads);
+            if (!isLoadCancelled) restoreTab(tabToRestore, tabState, false);
+        }
+        loadNextTab();
+    }
+
     private void loadNextTab() {
         if (mDestroyed) return;
 
-        if (mTabsToRestore.isEmpty()) {
+        if (mTabsToRestore.isEmpty() && mLoadTabTasks.isEmpty()) {
             mNormalTabsRestored = null;
             mIncognitoTabsRestored = null;
             mLoadInProgress = false;
@@ -1260,16 +1342,56 @@ public class TabPersistentStore extends TabPersister {
 
             cleanUpPersistentData();
             onStateLoaded();
-            mLoadTabTask = null;
             Log.d(TAG, "Loaded tab lists; counts: " + mTabModelSelector.getModel(false).getCount()
                     + "," + mTabModelSelector.getModel(true).getCount());
         } else {
-            TabRestoreDetails tabToRestore = mTabsToRestore.removeFirst();
-            mLoadTabTask = new LoadTabTask(tabToRestore);
-            mLoadTabTask.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+            // Read several TabState files in parallel; they are still restored in queue order.
+            while (!mTabsToRestore.isEmpty() && mLoadTabTasks.size() < MAX_CONCURRENT_TAB_LOADS) {
+                LoadTabTask loadTabTask = new LoadTabTask(mTabsToRestore.removeFirst());
+                mLoadTabTasks.addLast(loadTabTask);
+                loadTabTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
         }
     }
 
+    /**
+     * Reads the TabState of a tab being restored, recording the time spent reading the file and
+     * decrypting it separately.
+     * @param id ID of the Tab to restore.
+     * @return TabState that has been read, or null if it failed.
+     */
+    private TabState readTabState(int id) {
+        File stateDirectory = getStateDirectory();
+        long time = SystemClock.uptimeMillis();
+        File file = TabState.getTabStateFile(stateDirectory, id, false);
+        if (file.exists()) {
+            TabState tabState = TabState.restoreTabState(file, false);
+            logExecutionTime("RestoreTabReadTime", time);
+            return tabState;
+        }
+
+        file = TabState.getTabStateFile(stateDirectory, id, true);
+        if (!file.exists()) return null;
+        byte[] data;
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            data = new byte[(int) file.length()];
+            new DataInputStream(stream).readFully(data);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not read tab state file.", exception);
+            return null;
+        } finally {
+            StreamUtil.closeQuietly(stream);
+        }
+        logExecutionTime("RestoreTabReadTime", time);
+
+        time = SystemClock.uptimeMillis();
+        TabState tabState = TabState.readEncryptedState(data);
+        logExecutionTime("RestoreTabDecryptTime", time);
+        return tabState;
+    }
+
     /**
      * Asynchronously triggers a cleanup of any unused persistent data.
      */
@@ -1316,6 +1438,8 @@ public class TabPersistentStore extends TabPersister {
 
     private class LoadTabTask extends AsyncTask<TabState> {
         public final TabRestoreDetails mTabToRestore;
+        TabState mTabState;
+        boolean mIsLoaded;
 
         public LoadTabTask(TabRestoreDetails tabToRestore) {
             mTabToRestore = tabToRestore;
@@ -1325,7 +1449,7 @@ public class TabPersistentStore extends TabPersister {
         protected TabState doInBackground() {
             if (mDestroyed || isCancelled()) return null;
             try {
-                return TabState.restoreTabState(getStateDirectory(), mTabToRestore.id);
+                return readTabState(mTabToRestore.id);
             } catch (Exception e) {
                 Log.w(TAG, "Unable to read state: " + e);
                 return null;
@@ -1336,12 +1460,9 @@ public class TabPersistentStore extends TabPersister {
         protected void onPostExecute(TabState tabState) {
             if (mDestroyed || isCancelled()) return;
 
-            boolean isIncognito = isIncognitoTabBeingRestored(mTabToRestore, tabState);
-            boolean isLoadCancelled = (isIncognito && mCancelIncognitoTabLoads)
-                    || (!isIncognito && mCancelNormalTabLoads);
-            if (!isLoadCancelled) restoreTab(mTabToRestore, tabState, false);
-
-            loadNextTab();
+            mTabState = tabState;
+            mIsLoaded = true;
+            restoreLoadedTabsInOrder();
         }
     }
 
@@ -1392,11 +1513,11 @@ public class TabPersistentStore extends TabPersister {
         }
     }
 
-    private AsyncTask<DataInputStream> startFetchTabListTask(
+    private AsyncTask<TabListIndex> startFetchTabListTask(
             Executor executor, final String stateFileName) {
-        return new AsyncTask<DataInputStream>() {
+        return new AsyncTask<TabListIndex>() {
             @Override
-            protected DataInputStream doInBackground() {
+            protected TabListIndex doInBackground() {
                 Log.i(TAG, "Starting to fetch tab list for " + stateFileName);
                 File stateFile = new File(getStateDirectory(), stateFileName);
                 if (!stateFile.exists()) {
@@ -1408,20 +1529,15 @@ public class TabPersistentStore extends TabPersister {
                             "Android.TabPersistentStore.MergeStateMetadataFileSize",
                             (int) stateFile.length());
                 }
-                FileInputStream stream = null;
-                byte[] data;
+                TabListIndex index;
                 try {
-                    stream = new FileInputStream(stateFile);
-                    data = new byte[(int) stateFile.length()];
-                    stream.read(data);
+                    index = TabListIndex.fromFile(stateFile);
                 } catch (IOException exception) {
                     Log.e(TAG, "Could not read state file.", exception);
                     return null;
-                } finally {
-                    StreamUtil.closeQuietly(stream);
                 }
                 Log.i(TAG, "Finished fetching tab list.");
-                return new DataInputStream(new ByteArrayInputStream(data));
+                return index;
             }
         }
                 .executeOnExecutor(executor);
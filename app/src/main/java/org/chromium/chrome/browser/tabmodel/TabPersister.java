@@ -5,10 +5,14 @@
 package org.chromium.chrome.browser.tabmodel;
 
 import android.util.Log;
+import android.util.SparseArray;
 
+import org.chromium.base.VisibleForTesting;
 import org.chromium.chrome.browser.TabState;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Interacts with the file system to persist Tab and TabModel data.
@@ -17,6 +21,29 @@ import java.io.File;
 public abstract class TabPersister {
     private static final String TAG = "TabPersister";
 
+    /** Describes the last TabState written to disk for a tab. */
+    private static class SavedTabState {
+        final boolean mEncrypted;
+        final long mContentsStateChecksum;
+        final int mContentsStateLength;
+        final long mTimestampMillis;
+        final byte[] mMetadata;
+
+        SavedTabState(boolean encrypted, long contentsStateChecksum, int contentsStateLength,
+                long timestampMillis, byte[] metadata) {
+            mEncrypted = encrypted;
+            mContentsStateChecksum = contentsStateChecksum;
+            mContentsStateLength = contentsStateLength;
+            mTimestampMillis = timestampMillis;
+            mMetadata = metadata;
+        }
+    }
+
+    // Keyed by tab ID. Guarded by itself, as tab states are saved from both the UI thread and a
+    // background thread.
+    private final SparseArray<SavedTabState> mSavedTabStates = new SparseArray<>();
+    private long mBytesAvoided;
+
     /** @return File representing the directory that is used to store Tab state information. */
     protected abstract File getStateDirectory();
 
@@ -32,6 +59,9 @@ public abstract class TabPersister {
 
     /**
      * Saves the TabState with the given ID.
+     *
+     * The file is not written again if nothing changed since it was last saved.
+     *
      * @param tabId ID of the Tab.
      * @param encrypted Whether or not the TabState is encrypted.
      * @param state TabState for the Tab.
@@ -40,8 +70,42 @@ public abstract class TabPersister {
         if (state == null) return false;
 
         try {
-            TabState.saveState(getTabStateFile(tabId, encrypted), state, encrypted);
+            File file = getTabStateFile(tabId, encrypted);
+            if (state.contentsState == null) {
+                TabState.saveState(file, state, encrypted);
+                return true;
+            }
+
+            // The copy used for the checksum is the one written to disk.
+            byte[] contentsStateBytes = TabState.getContentsStateBytes(state);
+            long checksum = TabState.getContentsStateChecksum(contentsStateBytes);
+            int contentsStateLength = contentsStateBytes.length;
+            byte[] metadata = TabState.getMetadataBytes(state);
+            SavedTabState saved;
+            synchronized (mSavedTabStates) {
+                saved = mSavedTabStates.get(tabId);
+            }
+            if (saved != null && saved.mEncrypted == encrypted
+                    && saved.mContentsStateChecksum == checksum
+                    && saved.mContentsStateLength == contentsStateLength
+                    && saved.mTimestampMillis == state.timestampMillis
+                    && Arrays.equals(saved.mMetadata, metadata) && file.exists()) {
+                // Timestamp, contents state length, contents state, metadata and, if encrypted,
+                // the key check.
+                recordBytesAvoided(
+                        (encrypted ? 8 : 0) + 12 + contentsStateLength + metadata.length);
+                return true;
+            }
+
+            if (TabState.saveState(file, state, encrypted, contentsStateBytes) > 0) {
+                setSavedTabState(tabId, new SavedTabState(encrypted, checksum, contentsStateLength,
+                        state.timestampMillis, metadata));
+            } else {
+                setSavedTabState(tabId, null);
+            }
             return true;
+        } catch (IOException e) {
+            Log.e(TAG, "IOException while attempting to save tab state.");
         } catch (OutOfMemoryError e) {
             Log.e(TAG, "Out of memory error while attempting to save tab state.  Erasing.");
             deleteTabState(tabId, encrypted);
@@ -50,12 +114,40 @@ public abstract class TabPersister {
         return false;
     }
 
+    private void setSavedTabState(int tabId, SavedTabState savedTabState) {
+        synchronized (mSavedTabStates) {
+            if (savedTabState == null) {
+                mSavedTabStates.remove(tabId);
+            } else {
+                mSavedTabStates.put(tabId, savedTabState);
+            }
+        }
+    }
+
+    private void recordBytesAvoided(long bytes) {
+        synchronized (mSavedTabStates) {
+            mBytesAvoided += bytes;
+        }
+    }
+
+    /**
+     * @return The number of bytes that did not have to be written because the tab states that
+     *         were saved had not changed.
+     */
+    @VisibleForTesting
+    public long getBytesAvoidedForTesting() {
+        synchronized (mSavedTabStates) {
+            return mBytesAvoided;
+        }
+    }
+
     /**
      * Deletes the TabState corresponding to the given Tab.
      * @param id ID of the TabState to delete.
      * @param encrypted Whether or not the tab is encrypted.
      */
     public void deleteTabState(int id, boolean encrypted) {
+        setSavedTabState(id, null);
         TabState.deleteTabState(getStateDirectory(), id, encrypted);
     }
 }
\ No newline at end of file
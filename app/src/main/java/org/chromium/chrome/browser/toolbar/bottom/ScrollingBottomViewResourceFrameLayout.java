@@ -73,8 +73,9 @@ public class ScrollingBottomViewResourceFrameLayout extends ViewResourceFrameLay
                 if (mCachedRect.intersect(0, 0, getWidth(), mTopShadowHeightPx)) {
                     canvas.save();
 
-                    // Clip the canvas to only the section of the dirty rect that contains the top
-                    // shadow of the view.
+                    // Clip the canvas to only the section of the dirty region that contains the
+                    // top shadow of the view.
+                    clipToDirtyRegion(canvas);
                     canvas.clipRect(mCachedRect);
 
                     // Clear the shadow so redrawing does not make it progressively darker.
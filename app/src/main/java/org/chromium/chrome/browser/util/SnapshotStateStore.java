@@ -0,0 +1,250 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.util;
+
+import android.support.v4.util.AtomicFile;
+
+import org.chromium.base.Log;
+import org.chromium.base.StrictModeContext;
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.base.task.AsyncTask;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base class for state which is kept in memory and persisted as a single binary snapshot file,
+ * such as the Custom Tabs throttling state, the origin verifications or the web app data.
+ *
+ * The snapshot is read once, preferably in the background with {@link #loadInBackground}, so that
+ * accesses from hot paths do not cause disk I/O. Changes are batched: they are written together
+ * to a new snapshot {@link #WRITE_DELAY_MS} after the first one, on a background thread, through
+ * an {@link AtomicFile}. The snapshot starts with a magic number and a version, followed by the
+ * data written by the subclass.
+ *
+ * When the snapshot does not exist yet, subclasses import the state they previously kept in
+ * SharedPreferences, which they clear once the snapshot has been written. If the snapshot cannot
+ * be read, it is never written over, so that the state is not lost; if it is corrupted, it is
+ * moved aside.
+ *
+ * Subclasses guard their state with the store itself, and call {@link #ensureLoadedLocked} before
+ * accessing it. This class is thread safe.
+ */
+public abstract class SnapshotStateStore {
+    /** How long changes are batched before being written to disk. */
+    public static final long WRITE_DELAY_MS = 1000;
+
+    private static final String TAG = "SnapshotStateStore";
+    private static final String CORRUPTED_SUFFIX = ".corrupted";
+
+    private final AtomicFile mFile;
+    private final int mMagic;
+    private final int mVersion;
+    private final AtomicBoolean mLoadStarted = new AtomicBoolean();
+
+    // Serializes the writes, so that an older snapshot never replaces a newer one.
+    private final Object mWriteLock = new Object();
+
+    // All guarded by |this|.
+    private boolean mLoaded;
+    private boolean mWriteScheduled;
+    private boolean mWritesDisabled;
+    private boolean mLegacyStateImported;
+    private int mAvoidedDiskReadCount;
+    private int mBlockingLoadCount;
+    private int mWriteCount;
+
+    /**
+     * @param file The snapshot file.
+     * @param magic The magic number identifying the snapshots of the subclass.
+     * @param version The version of the snapshot format of the subclass.
+     */
+    protected SnapshotStateStore(File file, int magic, int version) {
+        mFile = new AtomicFile(file);
+        mMagic = magic;
+        mVersion = version;
+    }
+
+    /**
+     * Reads the state from a snapshot, on a state reset by {@link #clearStateLocked}. Called with
+     * |this| held.
+     * @param data The whole snapshot, which subclasses may keep to decode parts of it lazily.
+     * @param input Reads |data| from after the magic number and the version.
+     */
+    protected abstract void readSnapshotLocked(byte[] data, DataInputStream input)
+            throws IOException;
+
+    /** Writes the state to a snapshot. Called with |this| held. */
+    protected abstract void writeSnapshotLocked(DataOutputStream output) throws IOException;
+
+    /** Resets the state, for instance when the snapshot is corrupted. Called with |this| held. */
+    protected abstract void clearStateLocked();
+
+    /**
+     * Imports the state kept in SharedPreferences by previous versions. Called with |this| held.
+     * @return Whether some state was imported.
+     */
+    protected abstract boolean importLegacyStateLocked();
+
+    /** Clears the imported legacy state, once the snapshot has been written. */
+    protected abstract void clearLegacyState();
+
+    /**
+     * Reads the snapshot on a background thread, if it has not been read yet, so that the first
+     * access from a hot path does not have to.
+     */
+    public void loadInBackground() {
+        if (!mLoadStarted.compareAndSet(false, true)) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            synchronized (this) {
+                if (!mLoaded) load();
+            }
+        });
+    }
+
+    /**
+     * Makes sure that the state is in memory, reading the snapshot synchronously if it has not
+     * been loaded in the background. Must be called with |this| held.
+     */
+    protected void ensureLoadedLocked() {
+        if (mLoaded) {
+            mAvoidedDiskReadCount++;
+            return;
+        }
+        mLoadStarted.set(true);
+        mBlockingLoadCount++;
+        try (StrictModeContext unused = StrictModeContext.allowDiskReads()) {
+            load();
+        }
+    }
+
+    /** Schedules a write of the state. Must be called with |this| held. */
+    protected void scheduleWriteLocked() {
+        if (mWriteScheduled) return;
+        mWriteScheduled = true;
+        ThreadUtils.postOnUiThreadDelayed(
+                () -> AsyncTask.SERIAL_EXECUTOR.execute(this::write), WRITE_DELAY_MS);
+    }
+
+    /**
+     * Writes the state synchronously. Must not be called with |this| held.
+     * @return Whether the snapshot was written.
+     */
+    protected boolean write() {
+        synchronized (mWriteLock) {
+            byte[] data;
+            boolean legacyStateImported;
+            synchronized (this) {
+                mWriteScheduled = false;
+                if (mWritesDisabled) return false;
+                legacyStateImported = mLegacyStateImported;
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream output = new DataOutputStream(bytes);
+                    output.writeInt(mMagic);
+                    output.writeInt(mVersion);
+                    writeSnapshotLocked(output);
+                    output.close();
+                    data = bytes.toByteArray();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to serialize " + mFile.getBaseFile() + ": " + e);
+                    return false;
+                }
+            }
+
+            FileOutputStream output = null;
+            try {
+                output = mFile.startWrite();
+                output.write(data);
+                mFile.finishWrite(output);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write " + mFile.getBaseFile() + ": " + e);
+                if (output != null) mFile.failWrite(output);
+                return false;
+            }
+
+            synchronized (this) {
+                mWriteCount++;
+                mLegacyStateImported = false;
+            }
+            // The legacy state is kept until the snapshot is written, so that the import is
+            // retried if the process dies before.
+            if (legacyStateImported) clearLegacyState();
+            return true;
+        }
+    }
+
+    /** @return The number of accesses served from memory, which used to read preferences. */
+    @VisibleForTesting
+    public synchronized int getAvoidedDiskReadCount() {
+        return mAvoidedDiskReadCount;
+    }
+
+    /** @return The number of times the snapshot was read synchronously by an access. */
+    @VisibleForTesting
+    public synchronized int getBlockingLoadCount() {
+        return mBlockingLoadCount;
+    }
+
+    /** @return The number of times the snapshot was written. */
+    @VisibleForTesting
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    // Must be called with |this| held.
+    private void load() {
+        mLoaded = true;
+        byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            if (importLegacyStateLocked()) {
+                mLegacyStateImported = true;
+                scheduleWriteLocked();
+            }
+            return;
+        } catch (IOException e) {
+            // The snapshot may be readable on the next start, do not replace it with the changes
+            // made until then.
+            Log.e(TAG, "Unable to read " + mFile.getBaseFile() + ": " + e);
+            mWritesDisabled = true;
+            return;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            if (input.readInt() != mMagic || input.readInt() != mVersion) {
+                throw new IOException("Unsupported format");
+            }
+            readSnapshotLocked(data, input);
+        } catch (IOException e) {
+            Log.e(TAG, "Corrupted snapshot " + mFile.getBaseFile() + ": " + e);
+            clearStateLocked();
+            moveCorruptedSnapshotAside();
+        }
+    }
+
+    // Must be called with |this| held.
+    private void moveCorruptedSnapshotAside() {
+        File file = mFile.getBaseFile();
+        File corruptedFile = new File(file.getPath() + CORRUPTED_SUFFIX);
+        if (corruptedFile.exists() && !corruptedFile.delete()) {
+            Log.e(TAG, "Unable to delete " + corruptedFile);
+        }
+        if (!file.renameTo(corruptedFile)) {
+            Log.e(TAG, "Unable to move " + file + " aside");
+            mWritesDisabled = true;
+        }
+    }
+}
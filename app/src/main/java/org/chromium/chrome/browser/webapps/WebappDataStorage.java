@@ -4,14 +4,12 @@
 
 package org.chromium.chrome.browser.webapps;
 
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import org.chromium.base.ContextUtils;
 import org.chromium.base.Log;
 import org.chromium.base.VisibleForTesting;
 import org.chromium.base.task.AsyncTask;
@@ -26,14 +24,18 @@ import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Stores data about an installed web app. Uses SharedPreferences to persist the data to disk.
+ * Stores data about an installed web app. The data of all web apps is persisted to disk in a
+ * single {@link WebappDataStore}, which exposes the data of each web app as a SharedPreferences.
  * This class must only be accessed via {@link WebappRegistry}, which is used to register and keep
  * track of web app data known to Chrome.
  */
 public class WebappDataStorage {
     private static final String TAG = "WebappDataStorage";
 
+    // The prefix of the SharedPreferences files used before WebappDataStore, which are imported
+    // into the store.
     static final String SHARED_PREFS_FILE_PREFIX = "webapp_";
+
     static final String KEY_SPLASH_ICON = "splash_icon";
     static final String KEY_LAST_USED = "last_used";
     static final String KEY_HAS_BEEN_LAUNCHED = "has_been_launched";
@@ -104,6 +106,10 @@ public class WebappDataStorage {
     private static Clock sClock = new Clock();
     private static Factory sFactory = new Factory();
 
+    // Incremented whenever the scope of a web app is written or cleared, so that WebappRegistry
+    // can tell when its index of scopes is out of date.
+    private static int sScopeVersion;
+
     private final String mId;
     private final SharedPreferences mPreferences;
 
@@ -148,6 +154,13 @@ public class WebappDataStorage {
         return sFactory.create(webappId);
     }
 
+    /**
+     * Returns a number which changes every time the scope of any web app is updated or cleared.
+     */
+    static int getScopeVersion() {
+        return sScopeVersion;
+    }
+
     /**
      * Sets the clock used to get the current time.
      */
@@ -251,6 +264,7 @@ public class WebappDataStorage {
             }
             editor.putString(KEY_SCOPE, scope);
             updated = true;
+            sScopeVersion++;
         }
 
         // For all other fields, assume that if the version key is present and equal to
@@ -315,8 +329,8 @@ public class WebappDataStorage {
     }
 
     /**
-     * Deletes the data for a web app by clearing all the information inside the SharedPreferences
-     * file. This does NOT delete the file itself but the file is left empty.
+     * Deletes the data for a web app by clearing all the information stored for it. The web app
+     * is dropped from the {@link WebappDataStore} file the next time it is written.
      */
     void delete() {
         deletePendingUpdateRequestFile();
@@ -342,6 +356,7 @@ public class WebappDataStorage {
         editor.remove(KEY_RELAX_UPDATES);
         editor.remove(KEY_SHOW_DISCLOSURE);
         editor.apply();
+        sScopeVersion++;
     }
 
     /**
@@ -581,7 +596,6 @@ public class WebappDataStorage {
 
     protected WebappDataStorage(String webappId) {
         mId = webappId;
-        mPreferences = ContextUtils.getApplicationContext().getSharedPreferences(
-                SHARED_PREFS_FILE_PREFIX + webappId, Context.MODE_PRIVATE);
+        mPreferences = WebappDataStore.getInstance().getEntry(webappId);
     }
 }
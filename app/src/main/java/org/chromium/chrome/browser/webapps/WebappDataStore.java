@@ -0,0 +1,528 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.webapps;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import org.chromium.base.ContextUtils;
+import org.chromium.base.Log;
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.VisibleForTesting;
+import org.chromium.chrome.browser.util.SnapshotStateStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the data of all the web apps in a single file, and exposes the data of each web app to
+ * {@link WebappDataStorage} as a {@link SharedPreferences}. Opening the store reads one file
+ * instead of one SharedPreferences file per web app, and the values of a web app are only decoded
+ * when they are first accessed.
+ *
+ * The file is a {@link SnapshotStateStore} snapshot, with all integers stored big-endian:
+ *   Header:  entry count, then one (web app id, data offset, data length) triple per web app.
+ *            Offsets are relative to the end of the header.
+ *   Entries: for each web app, the number of values, then a (key, type, value) triple per value.
+ * Strings are stored as their UTF-8 length followed by their UTF-8 bytes.
+ *
+ * Changes made with {@link SharedPreferences.Editor#apply} are batched by the
+ * {@link SnapshotStateStore}, and {@link SharedPreferences.Editor#commit} writes the store
+ * synchronously. The data of the web apps known to {@link WebappRegistry} is imported from their
+ * SharedPreferences files.
+ *
+ * This class is thread safe.
+ */
+class WebappDataStore extends SnapshotStateStore {
+    /** The name of the store file, in the app's files directory. */
+    static final String FILE_NAME = "webapp_data_store";
+
+    private static final String TAG = "WebappDataStore";
+
+    private static final int MAGIC = 0x57415053;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING_SET = 5;
+
+    private static WebappDataStore sInstance;
+
+    // The entries of the store, by web app id. Guarded by |this|.
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    // The SharedPreferences imported from previous versions. Guarded by |this|.
+    private final List<SharedPreferences> mLegacyPreferences = new ArrayList<>();
+
+    /**
+     * Returns the store. It is read from disk on first access to an entry.
+     */
+    static synchronized WebappDataStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new WebappDataStore(
+                    new File(ContextUtils.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    WebappDataStore(File file) {
+        super(file, MAGIC, VERSION);
+    }
+
+    /**
+     * Returns the data of a web app, which is empty if the web app is not in the store yet.
+     * @param webappId The ID of the web app.
+     */
+    synchronized SharedPreferences getEntry(String webappId) {
+        ensureLoadedLocked();
+        Entry entry = mEntries.get(webappId);
+        if (entry == null) {
+            entry = new Entry(null, 0, 0);
+            mEntries.put(webappId, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    protected void readSnapshotLocked(byte[] data, DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0) throw new IOException("Invalid entry count");
+
+        List<String> ids = new ArrayList<>(count);
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids.add(readString(input));
+            offsets[i] = input.readInt();
+            lengths[i] = input.readInt();
+        }
+        int headerSize = data.length - input.available();
+        int dataSize = data.length - headerSize;
+
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] > dataSize - lengths[i]) {
+                throw new IOException("Invalid entry bounds");
+            }
+            mEntries.put(ids.get(i), new Entry(data, headerSize + offsets[i], lengths[i]));
+        }
+    }
+
+    @Override
+    protected void writeSnapshotLocked(DataOutputStream output) throws IOException {
+        List<String> ids = new ArrayList<>(mEntries.size());
+        List<byte[]> blobs = new ArrayList<>(mEntries.size());
+        List<Integer> blobOffsets = new ArrayList<>(mEntries.size());
+        List<Integer> blobLengths = new ArrayList<>(mEntries.size());
+        for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.isEmptyLocked()) continue;
+            ids.add(mapEntry.getKey());
+            if (entry.mValues == null) {
+                // Entries that were never accessed are copied without being decoded.
+                blobs.add(entry.mData);
+                blobOffsets.add(entry.mOffset);
+                blobLengths.add(entry.mLength);
+            } else {
+                byte[] blob = encodeValues(entry.mValues);
+                blobs.add(blob);
+                blobOffsets.add(0);
+                blobLengths.add(blob.length);
+            }
+        }
+
+        output.writeInt(ids.size());
+        int offset = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            writeString(output, ids.get(i));
+            output.writeInt(offset);
+            output.writeInt(blobLengths.get(i));
+            offset += blobLengths.get(i);
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            output.write(blobs.get(i), blobOffsets.get(i), blobLengths.get(i));
+        }
+    }
+
+    @Override
+    protected void clearStateLocked() {
+        mEntries.clear();
+    }
+
+    /**
+     * Imports the SharedPreferences of the web apps registered in {@link WebappRegistry}.
+     */
+    @Override
+    protected boolean importLegacyStateLocked() {
+        Context context = ContextUtils.getApplicationContext();
+        SharedPreferences registryPreferences = context.getSharedPreferences(
+                WebappRegistry.REGISTRY_FILE_NAME, Context.MODE_PRIVATE);
+        Set<String> webappIds = registryPreferences.getStringSet(
+                WebappRegistry.KEY_WEBAPP_SET, Collections.<String>emptySet());
+
+        for (String webappId : webappIds) {
+            SharedPreferences preferences = context.getSharedPreferences(
+                    WebappDataStorage.SHARED_PREFS_FILE_PREFIX + webappId, Context.MODE_PRIVATE);
+            Map<String, ?> values = preferences.getAll();
+            if (values.isEmpty()) continue;
+
+            Entry entry = new Entry(null, 0, 0);
+            for (Map.Entry<String, ?> value : values.entrySet()) {
+                entry.putValue(value.getKey(), value.getValue());
+            }
+            mEntries.put(webappId, entry);
+            mLegacyPreferences.add(preferences);
+        }
+        return !mLegacyPreferences.isEmpty();
+    }
+
+    @Override
+    protected void clearLegacyState() {
+        List<SharedPreferences> legacyPreferences;
+        synchronized (this) {
+            legacyPreferences = new ArrayList<>(mLegacyPreferences);
+            mLegacyPreferences.clear();
+        }
+        for (SharedPreferences preferences : legacyPreferences) {
+            preferences.edit().clear().apply();
+        }
+    }
+
+    private static byte[] encodeValues(Map<String, Object> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            writeString(output, entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                output.writeByte(TYPE_STRING);
+                writeString(output, (String) value);
+            } else if (value instanceof Integer) {
+                output.writeByte(TYPE_INT);
+                output.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                output.writeByte(TYPE_LONG);
+                output.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                output.writeByte(TYPE_FLOAT);
+                output.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                output.writeByte(TYPE_BOOLEAN);
+                output.writeBoolean((Boolean) value);
+            } else {
+                @SuppressWarnings("unchecked")
+                Set<String> set = (Set<String>) value;
+                output.writeByte(TYPE_STRING_SET);
+                output.writeInt(set.size());
+                for (String item : set) writeString(output, item);
+            }
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static HashMap<String, Object> decodeValues(byte[] data, int offset, int length)
+            throws IOException {
+        DataInputStream input =
+                new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int count = input.readInt();
+        HashMap<String, Object> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readString(input);
+            byte type = input.readByte();
+            switch (type) {
+                case TYPE_STRING:
+                    values.put(key, readString(input));
+                    break;
+                case TYPE_INT:
+                    values.put(key, input.readInt());
+                    break;
+                case TYPE_LONG:
+                    values.put(key, input.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    values.put(key, input.readFloat());
+                    break;
+                case TYPE_BOOLEAN:
+                    values.put(key, input.readBoolean());
+                    break;
+                case TYPE_STRING_SET:
+                    int size = input.readInt();
+                    Set<String> set = new HashSet<>();
+                    for (int j = 0; j < size; j++) set.add(readString(input));
+                    values.put(key, set);
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) throw new IOException("Invalid string");
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * The data of a single web app. Like with the platform's implementation, change listeners are
+     * notified on the UI thread, and not for the keys removed by {@link Editor#clear}.
+     */
+    private class Entry implements SharedPreferences {
+        // The encoded values, until they are decoded into |mValues| on first access.
+        private byte[] mData;
+        private int mOffset;
+        private int mLength;
+
+        @Nullable
+        private HashMap<String, Object> mValues;
+
+        // Guarded by the store.
+        private final List<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
+
+        Entry(@Nullable byte[] data, int offset, int length) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+            if (data == null) mValues = new HashMap<>();
+        }
+
+        // Must be called with the store held.
+        private HashMap<String, Object> getValuesLocked() {
+            if (mValues == null) {
+                try {
+                    mValues = decodeValues(mData, mOffset, mLength);
+                } catch (IOException e) {
+                    Log.e(TAG, "Corrupted web app data: " + e);
+                    mValues = new HashMap<>();
+                }
+                mData = null;
+            }
+            return mValues;
+        }
+
+        // Must be called with the store held.
+        private boolean isEmptyLocked() {
+            return mValues == null ? mLength == 0 : mValues.isEmpty();
+        }
+
+        // Must be called with the store held.
+        private void putValue(String key, @Nullable Object value) {
+            if (value == null) {
+                getValuesLocked().remove(key);
+            } else if (value instanceof Set) {
+                @SuppressWarnings("unchecked")
+                Set<String> set = (Set<String>) value;
+                getValuesLocked().put(key, new HashSet<>(set));
+            } else {
+                getValuesLocked().put(key, value);
+            }
+        }
+
+        private Object get(String key) {
+            synchronized (WebappDataStore.this) {
+                return getValuesLocked().get(key);
+            }
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            synchronized (WebappDataStore.this) {
+                return new HashMap<>(getValuesLocked());
+            }
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            Object value = get(key);
+            return value instanceof Set ? new HashSet<>((Set<String>) value) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            Object value = get(key);
+            return value instanceof Integer ? (Integer) value : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            Object value = get(key);
+            return value instanceof Long ? (Long) value : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            Object value = get(key);
+            return value instanceof Float ? (Float) value : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            Object value = get(key);
+            return value instanceof Boolean ? (Boolean) value : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public SharedPreferences.Editor edit() {
+            return new EntryEditor(this);
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            synchronized (WebappDataStore.this) {
+                if (!mListeners.contains(listener)) mListeners.add(listener);
+            }
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            synchronized (WebappDataStore.this) {
+                mListeners.remove(listener);
+            }
+        }
+
+        private void notifyListeners(List<String> keys) {
+            List<OnSharedPreferenceChangeListener> listeners;
+            synchronized (WebappDataStore.this) {
+                if (mListeners.isEmpty() || keys.isEmpty()) return;
+                listeners = new ArrayList<>(mListeners);
+            }
+            ThreadUtils.runOnUiThread(() -> {
+                for (String key : keys) {
+                    for (OnSharedPreferenceChangeListener listener : listeners) {
+                        listener.onSharedPreferenceChanged(this, key);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects changes to an {@link Entry}, which are applied when the editor is committed.
+     */
+    private class EntryEditor implements SharedPreferences.Editor {
+        private final Entry mEntry;
+        // Changed values by key; a null value removes the key.
+        private final HashMap<String, Object> mChanges = new HashMap<>();
+        private boolean mClear;
+
+        EntryEditor(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(String key, @Nullable String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+            mChanges.put(key, values == null ? null : new HashSet<>(values));
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(String key, float value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            commitToMemory();
+            return write();
+        }
+
+        @Override
+        public void apply() {
+            commitToMemory();
+            synchronized (WebappDataStore.this) {
+                scheduleWriteLocked();
+            }
+        }
+
+        private void commitToMemory() {
+            synchronized (WebappDataStore.this) {
+                if (mClear) mEntry.getValuesLocked().clear();
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    mEntry.putValue(change.getKey(), change.getValue());
+                }
+            }
+            mEntry.notifyListeners(new ArrayList<>(mChanges.keySet()));
+        }
+    }
+}
@@ -26,15 +26,14 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Singleton class which tracks web apps backed by a SharedPreferences file (abstracted by the
+ * Singleton class which tracks web apps backed by the WebappDataStore file (abstracted by the
  * WebappDataStorage class). This class must be used on the main thread, except when warming
  * SharedPreferences.
  *
- * Aside from web app registration, which is asynchronous as a new SharedPreferences file must be
- * opened, all methods in this class are synchronous. All web app SharedPreferences known to
- * WebappRegistry are pre-warmed on browser startup when creating the singleton WebappRegistry
- * instance, whilst registering a new web app will automatically cache the new SharedPreferences
- * after it is created.
+ * Aside from web app registration, which is asynchronous as the WebappDataStore may need to be
+ * read, all methods in this class are synchronous. The WebappDataStore and the registry's own
+ * SharedPreferences are pre-warmed on browser startup when creating the singleton WebappRegistry
+ * instance.
  *
  * This class is not a comprehensive list of installed web apps because it is impossible to know
  * when the user removes a web app from the home screen. The WebappDataStorage.wasUsedRecently()
@@ -61,6 +60,13 @@ public class WebappRegistry {
     private HashMap<String, WebappDataStorage> mStorages;
     private SharedPreferences mPreferences;
 
+    // Index of the scopes of the web apps in |mStorages|, excluding WebAPKs, along with the scope
+    // each web app was indexed with. The index is rebuilt when WebappDataStorage reports that a
+    // scope changed since |mScopeTrieVersion|.
+    private final WebappScopeTrie mScopeTrie = new WebappScopeTrie();
+    private final HashMap<String, String> mIndexedScopes = new HashMap<>();
+    private int mScopeTrieVersion = -1;
+
     /**
      * Callback run when a WebappDataStorage object is registered for the first time. The storage
      * parameter will never be null.
@@ -129,7 +135,9 @@ public class WebappRegistry {
                 // {@link WebappRegistry@unregisterOldWebapps()} from deleting the
                 // WebappDataStorage. Must be run on the main thread as
                 // SharedPreferences.Editor.apply() is called.
-                mStorages.put(webappId, storage);
+                WebappDataStorage previous = mStorages.put(webappId, storage);
+                if (previous != null) removeFromScopeTrie(webappId, previous);
+                addToScopeTrie(webappId, storage);
                 mPreferences.edit().putStringSet(KEY_WEBAPP_SET, mStorages.keySet()).apply();
                 storage.updateLastUsedTime();
                 if (callback != null) callback.onWebappDataStorageRetrieved(storage);
@@ -156,19 +164,8 @@ public class WebappRegistry {
      * @return The storage object for the web app, or null if one cannot be found.
      */
     public WebappDataStorage getWebappDataStorageForUrl(final String url) {
-        WebappDataStorage bestMatch = null;
-        int largestOverlap = 0;
-        for (HashMap.Entry<String, WebappDataStorage> entry : mStorages.entrySet()) {
-            WebappDataStorage storage = entry.getValue();
-            if (storage.getId().startsWith(WebApkConstants.WEBAPK_ID_PREFIX)) continue;
-
-            String scope = storage.getScope();
-            if (url.startsWith(scope) && scope.length() > largestOverlap) {
-                bestMatch = storage;
-                largestOverlap = scope.length();
-            }
-        }
-        return bestMatch;
+        if (mScopeTrieVersion != WebappDataStorage.getScopeVersion()) rebuildScopeTrie();
+        return mScopeTrie.findLongestPrefixMatch(url);
     }
 
     /**
@@ -205,6 +202,8 @@ public class WebappRegistry {
             it.next().getValue().delete();
             it.remove();
         }
+        mScopeTrie.clear();
+        mIndexedScopes.clear();
         mPreferences.edit().putStringSet(KEY_WEBAPP_SET, mStorages.keySet()).apply();
     }
 
@@ -239,6 +238,7 @@ public class WebappRegistry {
                     < WEBAPP_UNOPENED_CLEANUP_DURATION) {
                 continue;
             }
+            removeFromScopeTrie(entry.getKey(), storage);
             storage.delete();
             it.remove();
         }
@@ -260,6 +260,7 @@ public class WebappRegistry {
             HashMap.Entry<String, WebappDataStorage> entry = it.next();
             WebappDataStorage storage = entry.getValue();
             if (urlFilter.matchesUrl(storage.getUrl())) {
+                removeFromScopeTrie(entry.getKey(), storage);
                 storage.delete();
                 it.remove();
             }
@@ -316,11 +317,46 @@ public class WebappRegistry {
                     mStorages.put(id, WebappDataStorage.open(id));
                 }
             }
+            // Reading the scopes is part of warming up the SharedPreferences.
+            rebuildScopeTrie();
         } else {
             if (webapps.contains(idToInitialize)
                     && (replaceExisting || !mStorages.containsKey(idToInitialize))) {
-                mStorages.put(idToInitialize, WebappDataStorage.open(idToInitialize));
+                WebappDataStorage storage = WebappDataStorage.open(idToInitialize);
+                WebappDataStorage previous = mStorages.put(idToInitialize, storage);
+                if (previous != null) removeFromScopeTrie(idToInitialize, previous);
+                addToScopeTrie(idToInitialize, storage);
             }
         }
     }
+
+    /**
+     * Indexes the scopes of all the web apps in |mStorages|, except WebAPKs.
+     */
+    private void rebuildScopeTrie() {
+        mScopeTrie.clear();
+        mIndexedScopes.clear();
+        mScopeTrieVersion = WebappDataStorage.getScopeVersion();
+        for (HashMap.Entry<String, WebappDataStorage> entry : mStorages.entrySet()) {
+            addToScopeTrie(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds a web app to the scope index, unless the index is out of date and will be rebuilt by
+     * the next lookup anyway.
+     */
+    private void addToScopeTrie(String webappId, WebappDataStorage storage) {
+        if (mScopeTrieVersion != WebappDataStorage.getScopeVersion()) return;
+        if (webappId.startsWith(WebApkConstants.WEBAPK_ID_PREFIX)) return;
+
+        String scope = storage.getScope();
+        mScopeTrie.put(scope, storage);
+        mIndexedScopes.put(webappId, scope);
+    }
+
+    private void removeFromScopeTrie(String webappId, WebappDataStorage storage) {
+        String scope = mIndexedScopes.remove(webappId);
+        if (scope != null) mScopeTrie.remove(scope, storage);
+    }
 }
@@ -0,0 +1,109 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.chrome.browser.webapps;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A prefix tree of web app scopes, used by {@link WebappRegistry} to find the web app with the
+ * longest scope matching a URL in time proportional to the length of the URL, rather than to the
+ * number of registered web apps.
+ */
+class WebappScopeTrie {
+    private static class Node {
+        // The characters leading to the children, sorted, and the children in the same order.
+        char[] mKeys = new char[0];
+        Node[] mChildren = new Node[0];
+
+        // The web apps whose scope ends at this node, in insertion order.
+        List<WebappDataStorage> mStorages;
+
+        @Nullable
+        Node getChild(char key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            return index >= 0 ? mChildren[index] : null;
+        }
+
+        Node getOrAddChild(char key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            if (index >= 0) return mChildren[index];
+
+            int insertion = -index - 1;
+            char[] keys = new char[mKeys.length + 1];
+            Node[] children = new Node[mChildren.length + 1];
+            System.arraycopy(mKeys, 0, keys, 0, insertion);
+            System.arraycopy(mChildren, 0, children, 0, insertion);
+            keys[insertion] = key;
+            children[insertion] = new Node();
+            System.arraycopy(mKeys, insertion, keys, insertion + 1, mKeys.length - insertion);
+            System.arraycopy(
+                    mChildren, insertion, children, insertion + 1, mChildren.length - insertion);
+            mKeys = keys;
+            mChildren = children;
+            return children[insertion];
+        }
+    }
+
+    private Node mRoot = new Node();
+
+    /**
+     * Adds a web app to the trie.
+     * @param scope The scope of the web app. Empty scopes are ignored, as they match no URL.
+     * @param storage The storage of the web app.
+     */
+    void put(String scope, WebappDataStorage storage) {
+        if (scope.isEmpty()) return;
+        Node node = mRoot;
+        for (int i = 0; i < scope.length(); i++) {
+            node = node.getOrAddChild(scope.charAt(i));
+        }
+        if (node.mStorages == null) node.mStorages = new ArrayList<>(1);
+        node.mStorages.add(storage);
+    }
+
+    /**
+     * Removes a web app from the trie. Nodes are left in place, as they are reused if a web app
+     * with the same scope is registered again.
+     * @param scope The scope the web app was added with.
+     * @param storage The storage of the web app.
+     */
+    void remove(String scope, WebappDataStorage storage) {
+        if (scope.isEmpty()) return;
+        Node node = mRoot;
+        for (int i = 0; i < scope.length() && node != null; i++) {
+            node = node.getChild(scope.charAt(i));
+        }
+        if (node == null || node.mStorages == null) return;
+        node.mStorages.remove(storage);
+        if (node.mStorages.isEmpty()) node.mStorages = null;
+    }
+
+    /**
+     * Returns the web app with the longest scope which is a prefix of |url|. If several web apps
+     * share that scope, the one added first is returned.
+     * @param url The URL to search for.
+     * @return The storage of the web app, or null if no scope matches.
+     */
+    @Nullable
+    WebappDataStorage findLongestPrefixMatch(String url) {
+        WebappDataStorage bestMatch = null;
+        Node node = mRoot;
+        for (int i = 0; i < url.length(); i++) {
+            node = node.getChild(url.charAt(i));
+            if (node == null) break;
+            if (node.mStorages != null) bestMatch = node.mStorages.get(0);
+        }
+        return bestMatch;
+    }
+
+    /** Removes all the web apps from the trie. */
+    void clear() {
+        mRoot = new Node();
+    }
+}
@@ -16,14 +16,20 @@ import org.chromium.base.annotations.CalledByNative;
 import org.chromium.base.annotations.JNINamespace;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 @JNINamespace("media")
 class AudioTrackOutputStream {
     static class AudioBufferInfo {
-        private final int mNumFrames;
-        private final int mNumBytes;
+        private int mNumFrames;
+        private int mNumBytes;
 
         public AudioBufferInfo(int frames, int bytes) {
+            set(frames, bytes);
+        }
+
+        void set(int frames, int bytes) {
             mNumFrames = frames;
             mNumBytes = bytes;
         }
@@ -50,12 +56,28 @@ class AudioTrackOutputStream {
     private static final String TAG = "AudioTrackOutput";
     // Must be the same as AudioBus::kChannelAlignment.
     private static final int CHANNEL_ALIGNMENT = 16;
+    // Number of buffers in the ring between the reader and the writer thread. Two buffers let
+    // native fill one buffer while the other is written, while adding at most one buffer of
+    // latency; the added delay is reported to native through |delayInFrames|.
+    @VisibleForTesting
+    static final int NUM_BUFFERS = 2;
+
+    /** A preallocated buffer of the ring, owned by either the reader or the writer thread. */
+    private static class AudioBufferSlot {
+        final ByteBuffer mBuffer;
+        int mNumBytes;
+
+        AudioBufferSlot(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
 
     private long mNativeAudioTrackOutputStream;
     private Callback mCallback;
     private AudioTrack mAudioTrack;
     private int mBufferSizeInBytes;
     private WorkerThread mWorkerThread;
+    private ReaderThread mReaderThread;
 
     // See
     // https://developer.android.com/reference/android/media/AudioTrack.html#getPlaybackHeadPosition().
@@ -66,10 +88,25 @@ class AudioTrackOutputStream {
     private long mTotalPlayedFrames;
     private long mTotalReadFrames;
 
-    private ByteBuffer mReadBuffer;
-    private ByteBuffer mWriteBuffer;
-    private int mLeftSize;
-
+    // Buffers move from |mFreeSlots| to the reader thread, which fills them with data from native,
+    // then through |mFilledSlots| to the worker thread, which writes them to the AudioTrack. Both
+    // queues are array based and can hold every slot, so moving a buffer never allocates or blocks
+    // on insertion.
+    private AudioBufferSlot[] mSlots;
+    private final BlockingQueue<AudioBufferSlot> mFreeSlots =
+            new ArrayBlockingQueue<>(NUM_BUFFERS);
+    private final BlockingQueue<AudioBufferSlot> mFilledSlots =
+            new ArrayBlockingQueue<>(NUM_BUFFERS);
+    // Reused for every AudioBufferInfo returned by native. Only used on the reader thread.
+    private final AudioBufferInfo mBufferInfo = new AudioBufferInfo(0, 0);
+
+    // Number of times the worker thread found no filled buffer after playback started, i.e. native
+    // did not keep up with the AudioTrack. Written on the worker thread only.
+    private volatile int mUnderrunCount;
+    // Largest delay reported to native since start(). Written on the reader thread only.
+    private volatile long mMaxDelayInFrames;
+
+    // Writes the filled buffers to the AudioTrack.
     class WorkerThread extends Thread {
         private volatile boolean mDone;
 
@@ -80,15 +117,64 @@ class AudioTrackOutputStream {
         @Override
         public void run() {
             // This should not be a busy loop, since the thread would be blocked in either
-            // AudioSyncReader::WaitUntilDataIsReady() or AudioTrack.write().
-            while (!mDone) {
-                int left = writeData();
-                // AudioTrack.write() failed, exit the run loop.
-                if (left < 0) break;
-                // Only partial data is written, retry again.
-                if (left > 0) continue;
-
-                readMoreData();
+            // BlockingQueue.take() or AudioTrack.write().
+            boolean hasWritten = false;
+            try {
+                while (!mDone) {
+                    AudioBufferSlot slot = mFilledSlots.poll();
+                    if (slot == null) {
+                        if (hasWritten) mUnderrunCount++;
+                        slot = mFilledSlots.take();
+                    }
+                    // AudioTrack.write() failed, exit the run loop.
+                    if (!writeData(slot)) break;
+                    hasWritten = true;
+                    mFreeSlots.add(slot);
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts the thread once it is done.
+            }
+        }
+
+        private boolean writeData(AudioBufferSlot slot) {
+            int left = slot.mNumBytes;
+            // Retry partial writes until the whole buffer is written.
+            while (left > 0 && !mDone) {
+                int written = writeAudioTrack(slot.mBuffer, left);
+                if (written < 0) {
+                    Log.e(TAG, "AudioTrack.write() failed. Error:" + written);
+                    mCallback.onError();
+                    return false;
+                }
+                assert left >= written;
+                left -= written;
+            }
+            return true;
+        }
+    }
+
+    // Fills free buffers with data from native, ahead of the worker thread.
+    class ReaderThread extends Thread {
+        private volatile boolean mDone;
+
+        public void finish() {
+            mDone = true;
+        }
+
+        @Override
+        public void run() {
+            // This should not be a busy loop, since the thread would be blocked in either
+            // AudioSyncReader::WaitUntilDataIsReady() or BlockingQueue.take().
+            try {
+                while (!mDone) {
+                    AudioBufferSlot slot = mFreeSlots.take();
+                    boolean filled = false;
+                    while (!mDone && !filled) filled = readMoreData(slot);
+                    if (!filled) break;
+                    mFilledSlots.add(slot);
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts the thread once it is done.
             }
         }
     }
@@ -213,12 +299,25 @@ class AudioTrackOutputStream {
 
         mNativeAudioTrackOutputStream = nativeAudioTrackOutputStream;
         mTotalReadFrames = 0;
-        mReadBuffer = allocateAlignedByteBuffer(mBufferSizeInBytes, CHANNEL_ALIGNMENT);
+        mUnderrunCount = 0;
+        mMaxDelayInFrames = 0;
+        if (mSlots == null || mSlots[0].mBuffer.capacity() != mBufferSizeInBytes) {
+            mSlots = new AudioBufferSlot[NUM_BUFFERS];
+            for (int i = 0; i < NUM_BUFFERS; i++) {
+                mSlots[i] = new AudioBufferSlot(
+                        allocateAlignedByteBuffer(mBufferSizeInBytes, CHANNEL_ALIGNMENT));
+            }
+        }
+        mFreeSlots.clear();
+        mFilledSlots.clear();
+        for (AudioBufferSlot slot : mSlots) mFreeSlots.add(slot);
 
         mAudioTrack.play();
 
         mWorkerThread = new WorkerThread();
+        mReaderThread = new ReaderThread();
         mWorkerThread.start();
+        mReaderThread.start();
     }
 
     @CalledByNative
@@ -226,15 +325,21 @@ class AudioTrackOutputStream {
         Log.d(TAG, "AudioTrackOutputStream.stop()");
         if (mWorkerThread != null) {
             mWorkerThread.finish();
+            mReaderThread.finish();
             try {
                 mWorkerThread.interrupt();
+                mReaderThread.interrupt();
                 mWorkerThread.join();
+                mReaderThread.join();
             } catch (SecurityException e) {
                 Log.e(TAG, "Exception while waiting for AudioTrack worker thread finished: ", e);
             } catch (InterruptedException e) {
                 Log.e(TAG, "Exception while waiting for AudioTrack worker thread finished: ", e);
             }
             mWorkerThread = null;
+            mReaderThread = null;
+            Log.d(TAG, "Underruns: %d, max delay in frames: %d", mUnderrunCount,
+                    mMaxDelayInFrames);
         }
 
         mAudioTrack.pause();
@@ -264,10 +369,26 @@ class AudioTrackOutputStream {
 
     @CalledByNative
     AudioBufferInfo createAudioBufferInfo(int frames, int size) {
-        return new AudioBufferInfo(frames, size);
+        // Only called by native from nativeOnMoreData() on the reader thread, and the result is
+        // consumed before the next call, so a single instance can be reused.
+        mBufferInfo.set(frames, size);
+        return mBufferInfo;
     }
 
-    private void readMoreData() {
+    /** @return The number of times the AudioTrack was waiting for native since start(). */
+    @VisibleForTesting
+    int getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /** @return The largest delay, in frames, reported to native since start(). */
+    @VisibleForTesting
+    long getMaxDelayInFrames() {
+        return mMaxDelayInFrames;
+    }
+
+    // Returns whether |slot| was filled with data.
+    private boolean readMoreData(AudioBufferSlot slot) {
         assert mNativeAudioTrackOutputStream != 0;
 
         // Although the return value of AudioTrack.getPlaybackHeadPosition() should be unsigned
@@ -278,39 +399,28 @@ class AudioTrackOutputStream {
         mTotalPlayedFrames += position - mLastPlaybackHeadPosition;
         mLastPlaybackHeadPosition = position;
 
+        // Frames that are queued in the ring but not yet written are part of the delay as well.
         long delayInFrames = mTotalReadFrames - mTotalPlayedFrames;
         if (delayInFrames < 0) delayInFrames = 0;
+        if (delayInFrames > mMaxDelayInFrames) mMaxDelayInFrames = delayInFrames;
 
-        AudioBufferInfo info = mCallback.onMoreData(mReadBuffer.duplicate(), delayInFrames);
-        if (info == null || info.getNumBytes() <= 0) return;
+        slot.mBuffer.clear();
+        AudioBufferInfo info = mCallback.onMoreData(slot.mBuffer, delayInFrames);
+        if (info == null || info.getNumBytes() <= 0) return false;
 
         mTotalReadFrames += info.getNumFrames();
 
-        mWriteBuffer = mReadBuffer.asReadOnlyBuffer();
-        mLeftSize = info.getNumBytes();
-    }
-
-    private int writeData() {
-        if (mLeftSize == 0) return 0;
-
-        int written = writeAudioTrack();
-        if (written < 0) {
-            Log.e(TAG, "AudioTrack.write() failed. Error:" + written);
-            mCallback.onError();
-            return written;
-        }
-
-        assert mLeftSize >= written;
-        mLeftSize -= written;
-
-        return mLeftSize;
+        // AudioTrack.write() consumes the buffer starting from its position.
+        slot.mBuffer.clear();
+        slot.mNumBytes = info.getNumBytes();
+        return true;
     }
 
     @SuppressLint("NewApi")
-    private int writeAudioTrack() {
+    private int writeAudioTrack(ByteBuffer buffer, int size) {
         // This class is used for compressed audio bitstream playback, which is supported since
         // Android L, so it should be fine to use level 21 APIs directly.
-        return mAudioTrack.write(mWriteBuffer, mLeftSize, AudioTrack.WRITE_BLOCKING);
+        return mAudioTrack.write(buffer, size, AudioTrack.WRITE_BLOCKING);
     }
 
     private native AudioBufferInfo nativeOnMoreData(
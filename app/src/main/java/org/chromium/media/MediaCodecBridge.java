@@ -77,8 +77,8 @@ class MediaCodecBridge {
     private boolean mPendingStart;
     private long mNativeMediaCodecBridge;
     private int mSequenceCounter;
-    private Queue<DequeueInputResult> mPendingInputBuffers;
-    private Queue<DequeueOutputResult> mPendingOutputBuffers;
+    private PendingBufferQueue mPendingInputBuffers;
+    private PendingBufferQueue mPendingOutputBuffers;
 
     // Set by tests which don't have a Java MessagePump to ensure the MediaCodec
     // callbacks are actually delivered. Always null in production.
@@ -156,6 +156,107 @@ class MediaCodecBridge {
         }
     }
 
+    // Results without a buffer are immutable, so they are shared rather than allocated for each
+    // unsuccessful dequeue.
+    private static final DequeueInputResult INPUT_RESULT_ERROR =
+            new DequeueInputResult(MediaCodecStatus.ERROR, -1);
+    private static final DequeueInputResult INPUT_RESULT_TRY_AGAIN_LATER =
+            new DequeueInputResult(MediaCodecStatus.TRY_AGAIN_LATER, -1);
+    private static final DequeueOutputResult OUTPUT_RESULT_ERROR =
+            new DequeueOutputResult(MediaCodecStatus.ERROR, -1, 0, 0, 0, 0);
+    private static final DequeueOutputResult OUTPUT_RESULT_TRY_AGAIN_LATER =
+            new DequeueOutputResult(MediaCodecStatus.TRY_AGAIN_LATER, -1, 0, 0, 0, 0);
+
+    /**
+     * FIFO of buffer events received from the MediaCodecCallback, stored in primitive arrays used
+     * as a ring. The ring grows when full, which only happens until it can hold all of the codec's
+     * buffers, so queuing events does not allocate afterwards. Result objects are only created
+     * when native code dequeues an event.
+     */
+    private static final class PendingBufferQueue {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int[] mStatus = new int[INITIAL_CAPACITY];
+        private int[] mIndex = new int[INITIAL_CAPACITY];
+        private int[] mFlags = new int[INITIAL_CAPACITY];
+        private int[] mOffset = new int[INITIAL_CAPACITY];
+        private long[] mPresentationTimeUs = new long[INITIAL_CAPACITY];
+        private int[] mNumBytes = new int[INITIAL_CAPACITY];
+        private int mHead;
+        private int mSize;
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        void clear() {
+            mHead = 0;
+            mSize = 0;
+        }
+
+        void add(int status, int index, int flags, int offset, long presentationTimeUs,
+                int numBytes) {
+            if (mSize == mStatus.length) grow();
+            int tail = (mHead + mSize) % mStatus.length;
+            mStatus[tail] = status;
+            mIndex[tail] = index;
+            mFlags[tail] = flags;
+            mOffset[tail] = offset;
+            mPresentationTimeUs[tail] = presentationTimeUs;
+            mNumBytes[tail] = numBytes;
+            ++mSize;
+        }
+
+        /** Returns the status of the oldest event. The queue must not be empty. */
+        int peekStatus() {
+            assert mSize > 0;
+            return mStatus[mHead];
+        }
+
+        DequeueInputResult removeInputResult() {
+            DequeueInputResult result = new DequeueInputResult(mStatus[mHead], mIndex[mHead]);
+            remove();
+            return result;
+        }
+
+        DequeueOutputResult removeOutputResult() {
+            DequeueOutputResult result = new DequeueOutputResult(mStatus[mHead], mIndex[mHead],
+                    mFlags[mHead], mOffset[mHead], mPresentationTimeUs[mHead], mNumBytes[mHead]);
+            remove();
+            return result;
+        }
+
+        private void remove() {
+            assert mSize > 0;
+            mHead = (mHead + 1) % mStatus.length;
+            --mSize;
+        }
+
+        private void grow() {
+            int capacity = mStatus.length * 2;
+            mStatus = copyToStart(mStatus, new int[capacity]);
+            mIndex = copyToStart(mIndex, new int[capacity]);
+            mFlags = copyToStart(mFlags, new int[capacity]);
+            mOffset = copyToStart(mOffset, new int[capacity]);
+            mNumBytes = copyToStart(mNumBytes, new int[capacity]);
+            long[] presentationTimeUs = new long[capacity];
+            int firstPart = Math.min(mSize, mPresentationTimeUs.length - mHead);
+            System.arraycopy(mPresentationTimeUs, mHead, presentationTimeUs, 0, firstPart);
+            System.arraycopy(mPresentationTimeUs, 0, presentationTimeUs, firstPart,
+                    mSize - firstPart);
+            mPresentationTimeUs = presentationTimeUs;
+            mHead = 0;
+        }
+
+        /** Copies the queued elements of |ring| to the start of |destination|. */
+        private int[] copyToStart(int[] ring, int[] destination) {
+            int firstPart = Math.min(mSize, ring.length - mHead);
+            System.arraycopy(ring, mHead, destination, 0, firstPart);
+            System.arraycopy(ring, 0, destination, firstPart, mSize - firstPart);
+            return destination;
+        }
+    }
+
     /** A wrapper around a MediaFormat. */
     @MainDex
     private static class GetOutputFormatResult {
@@ -260,8 +361,8 @@ class MediaCodecBridge {
     private void enableAsyncApi() {
         mPendingError = false;
         mPendingFormat = new LinkedList<GetOutputFormatResult>();
-        mPendingInputBuffers = new LinkedList<DequeueInputResult>();
-        mPendingOutputBuffers = new LinkedList<DequeueOutputResult>();
+        mPendingInputBuffers = new PendingBufferQueue();
+        mPendingOutputBuffers = new PendingBufferQueue();
         mMediaCodec.setCallback(new MediaCodecCallback(this), sCallbackHandler);
     }
 
@@ -301,7 +402,7 @@ class MediaCodecBridge {
     public synchronized void onInputBufferAvailable(int index) {
         if (mPendingStart) return;
 
-        mPendingInputBuffers.add(new DequeueInputResult(MediaCodecStatus.OK, index));
+        mPendingInputBuffers.add(MediaCodecStatus.OK, index, 0, 0, 0, 0);
         notifyBuffersAvailable();
     }
 
@@ -310,14 +411,13 @@ class MediaCodecBridge {
         if (mPendingStart) return;
 
         updateLastPresentationTime(info);
-        mPendingOutputBuffers.add(new DequeueOutputResult(MediaCodecStatus.OK, index, info.flags,
-                info.offset, info.presentationTimeUs, info.size));
+        mPendingOutputBuffers.add(MediaCodecStatus.OK, index, info.flags, info.offset,
+                info.presentationTimeUs, info.size);
         notifyBuffersAvailable();
     }
 
     public synchronized void onOutputFormatChanged(MediaFormat format) {
-        mPendingOutputBuffers.add(
-                new DequeueOutputResult(MediaCodecStatus.OUTPUT_FORMAT_CHANGED, -1, 0, 0, 0, 0));
+        mPendingOutputBuffers.add(MediaCodecStatus.OUTPUT_FORMAT_CHANGED, -1, 0, 0, 0, 0);
         mPendingFormat.add(new GetOutputFormatResult(MediaCodecStatus.OK, format));
         notifyBuffersAvailable();
     }
@@ -412,10 +512,10 @@ class MediaCodecBridge {
     private DequeueInputResult dequeueInputBuffer(long timeoutUs) {
         if (mUseAsyncApi) {
             synchronized (this) {
-                if (mPendingError) return new DequeueInputResult(MediaCodecStatus.ERROR, -1);
+                if (mPendingError) return INPUT_RESULT_ERROR;
                 if (mPendingStart || mPendingInputBuffers.isEmpty())
-                    return new DequeueInputResult(MediaCodecStatus.TRY_AGAIN_LATER, -1);
-                return mPendingInputBuffers.remove();
+                    return INPUT_RESULT_TRY_AGAIN_LATER;
+                return mPendingInputBuffers.removeInputResult();
             }
         }
 
@@ -435,6 +535,8 @@ class MediaCodecBridge {
         } catch (Exception e) {
             Log.e(TAG, "Failed to dequeue input buffer", e);
         }
+        if (status == MediaCodecStatus.TRY_AGAIN_LATER) return INPUT_RESULT_TRY_AGAIN_LATER;
+        if (status == MediaCodecStatus.ERROR) return INPUT_RESULT_ERROR;
         return new DequeueInputResult(status, index);
     }
 
@@ -651,18 +753,13 @@ class MediaCodecBridge {
     private DequeueOutputResult dequeueOutputBuffer(long timeoutUs) {
         if (mUseAsyncApi) {
             synchronized (this) {
-                if (mPendingError)
-                    return new DequeueOutputResult(MediaCodecStatus.ERROR, -1, 0, 0, 0, 0);
-                if (mPendingOutputBuffers.isEmpty()) {
-                    return new DequeueOutputResult(
-                            MediaCodecStatus.TRY_AGAIN_LATER, -1, 0, 0, 0, 0);
-                }
-                if (mPendingOutputBuffers.peek().status()
-                        == MediaCodecStatus.OUTPUT_FORMAT_CHANGED) {
+                if (mPendingError) return OUTPUT_RESULT_ERROR;
+                if (mPendingOutputBuffers.isEmpty()) return OUTPUT_RESULT_TRY_AGAIN_LATER;
+                if (mPendingOutputBuffers.peekStatus() == MediaCodecStatus.OUTPUT_FORMAT_CHANGED) {
                     assert !mPendingFormat.isEmpty();
                     mCurrentFormat = mPendingFormat.remove();
                 }
-                return mPendingOutputBuffers.remove();
+                return mPendingOutputBuffers.removeOutputResult();
             }
         }
 
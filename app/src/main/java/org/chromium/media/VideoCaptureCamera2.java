@@ -33,6 +33,7 @@ import android.view.Surface;
 
 import org.chromium.base.ContextUtils;
 import org.chromium.base.Log;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.base.annotations.JNINamespace;
 
 import java.nio.ByteBuffer;
@@ -173,26 +174,30 @@ public class VideoCaptureCamera2 extends VideoCapture {
     };
 
     // Internal class implementing an ImageReader listener for Preview frames. Gets pinged when a
-    // new frame is been captured and downloads it to memory-backed buffers.
+    // new frame is been captured and hands its planes to native without copying them. The
+    // ImageReader only owns |PREVIEW_MAX_IMAGES| buffers, so a slow native consumer makes the
+    // camera drop frames instead of making us allocate; frames that queued up meanwhile are
+    // skipped in favour of the latest one.
     private class CrPreviewReaderListener implements ImageReader.OnImageAvailableListener {
         @Override
         public void onImageAvailable(ImageReader reader) {
             assert mCameraThreadHandler.getLooper() == Looper.myLooper() : "called on wrong thread";
 
-            try (Image image = reader.acquireLatestImage()) {
+            try (Image image = acquireLatestImageCountingSkipped(reader)) {
                 if (image == null) {
-                    nativeOnFrameDropped(mNativeVideoCaptureDeviceAndroid,
-                            AndroidVideoCaptureFrameDropReason
+                    onFrameDropped(AndroidVideoCaptureFrameDropReason
                                     .ANDROID_API_2_ACQUIRED_IMAGE_IS_NULL);
                     return;
                 }
 
-                if (image.getFormat() != ImageFormat.YUV_420_888 || image.getPlanes().length != 3) {
+                // getPlanes() returns a new array on every call, so only query it once.
+                final Image.Plane[] planes = image.getPlanes();
+                if (image.getFormat() != ImageFormat.YUV_420_888 || planes.length != 3) {
                     nativeOnError(mNativeVideoCaptureDeviceAndroid,
                             AndroidVideoCaptureError
                                     .ANDROID_API_2_IMAGE_READER_UNEXPECTED_IMAGE_FORMAT,
                             "Unexpected image format: " + image.getFormat()
-                                    + " or #planes: " + image.getPlanes().length);
+                                    + " or #planes: " + planes.length);
                     throw new IllegalStateException();
                 }
 
@@ -208,15 +213,31 @@ public class VideoCaptureCamera2 extends VideoCapture {
                 }
 
                 nativeOnI420FrameAvailable(mNativeVideoCaptureDeviceAndroid,
-                        image.getPlanes()[0].getBuffer(), image.getPlanes()[0].getRowStride(),
-                        image.getPlanes()[1].getBuffer(), image.getPlanes()[2].getBuffer(),
-                        image.getPlanes()[1].getRowStride(), image.getPlanes()[1].getPixelStride(),
-                        image.getWidth(), image.getHeight(), getCameraRotation(),
-                        image.getTimestamp());
+                        planes[0].getBuffer(), planes[0].getRowStride(), planes[1].getBuffer(),
+                        planes[2].getBuffer(), planes[1].getRowStride(),
+                        planes[1].getPixelStride(), image.getWidth(), image.getHeight(),
+                        getCameraRotation(), image.getTimestamp());
+                ++mDeliveredFrameCount;
             } catch (IllegalStateException ex) {
                 Log.e(TAG, "acquireLatestImage():", ex);
             }
         }
+
+        // Same as ImageReader.acquireLatestImage(), but counts the frames that are skipped
+        // because they were not consumed in time. They are not reported through
+        // onFrameDropped(): AndroidVideoCaptureFrameDropReason is generated from the native enum,
+        // which has no value for them.
+        private Image acquireLatestImageCountingSkipped(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) return null;
+            while (true) {
+                final Image next = reader.acquireNextImage();
+                if (next == null) return image;
+                image.close();
+                image = next;
+                ++mSkippedFrameCount;
+            }
+        }
     };
 
     // Inner class to extend a Photo Session state change listener.
@@ -277,17 +298,17 @@ public class VideoCaptureCamera2 extends VideoCapture {
         }
 
         private byte[] readCapturedData(Image image) {
-            byte[] capturedData = null;
-            try {
-                capturedData = image.getPlanes()[0].getBuffer().array();
-            } catch (UnsupportedOperationException ex) {
-                // Try reading the pixels in a different way.
-                final ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                capturedData = new byte[buffer.remaining()];
-                buffer.get(capturedData);
-            } finally {
-                return capturedData;
+            final ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            // Hand out the backing array as is when it holds exactly the encoded photo. ImageReader
+            // planes are normally direct buffers, which need a single copy into the array that is
+            // passed to native.
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                    && buffer.remaining() == buffer.array().length) {
+                return buffer.array();
             }
+            final byte[] capturedData = new byte[buffer.remaining()];
+            buffer.get(capturedData);
+            return capturedData;
         }
 
         @Override
@@ -332,6 +353,7 @@ public class VideoCaptureCamera2 extends VideoCapture {
             // CrStateListener.onClosed() in order to have a guarantee that no more
             // frames are delivered.
             mCameraDevice.close();
+            logFrameDeliveryStats();
 
             changeCameraStateAndNotify(CameraState.STOPPED);
             mCropRect = new Rect();
@@ -886,6 +908,10 @@ public class VideoCaptureCamera2 extends VideoCapture {
     private static final long kNanosecondsPer100Microsecond = 100000;
     private static final String TAG = "VideoCapture";
 
+    // Number of preview buffers shared between the camera and native. While native consumes one
+    // frame the camera fills the other, so there is no need to copy frames into a separate pool.
+    private static final int PREVIEW_MAX_IMAGES = 2;
+
     private static final String[] AE_TARGET_FPS_RANGE_BUGGY_DEVICE_LIST = {
             // See https://crbug.com/913203 for more info.
             "Pixel 3",
@@ -944,6 +970,12 @@ public class VideoCaptureCamera2 extends VideoCapture {
     private boolean mTorch;
     private boolean mEnableFaceDetection;
 
+    // Frame delivery statistics, only accessed on the camera thread. Dropped frames are keyed by
+    // AndroidVideoCaptureFrameDropReason.
+    private final SparseIntArray mDroppedFrameCounts = new SparseIntArray();
+    private int mDeliveredFrameCount;
+    private int mSkippedFrameCount;
+
     // Service function to grab CameraCharacteristics and handle exceptions.
     private static CameraCharacteristics getCameraCharacteristics(int id) {
         final CameraManager manager =
@@ -957,6 +989,38 @@ public class VideoCaptureCamera2 extends VideoCapture {
         return null;
     }
 
+    private void onFrameDropped(@AndroidVideoCaptureFrameDropReason int reason) {
+        mDroppedFrameCounts.put(reason, mDroppedFrameCounts.get(reason) + 1);
+        nativeOnFrameDropped(mNativeVideoCaptureDeviceAndroid, reason);
+    }
+
+    private void logFrameDeliveryStats() {
+        if (mDeliveredFrameCount == 0 && mSkippedFrameCount == 0
+                && mDroppedFrameCounts.size() == 0) {
+            return;
+        }
+        Log.d(TAG, "Delivered %d frames, skipped %d stale frames, dropped %s",
+                mDeliveredFrameCount, mSkippedFrameCount, mDroppedFrameCounts);
+        mDeliveredFrameCount = 0;
+        mSkippedFrameCount = 0;
+        mDroppedFrameCounts.clear();
+    }
+
+    /**
+     * @param reason An {@link AndroidVideoCaptureFrameDropReason}.
+     * @return The number of frames dropped for |reason| since the capture was last stopped.
+     */
+    @VisibleForTesting
+    int getDroppedFrameCountForTesting(@AndroidVideoCaptureFrameDropReason int reason) {
+        return mDroppedFrameCounts.get(reason);
+    }
+
+    /** @return The number of stale frames skipped since the capture was last stopped. */
+    @VisibleForTesting
+    int getSkippedFrameCountForTesting() {
+        return mSkippedFrameCount;
+    }
+
     private void createPreviewObjectsAndStartPreviewOrFailWith(int androidVideoCaptureError) {
         assert mCameraThreadHandler.getLooper() == Looper.myLooper() : "called on wrong thread";
 
@@ -974,7 +1038,7 @@ public class VideoCaptureCamera2 extends VideoCapture {
         // Create an ImageReader and plug a thread looper into it to have
         // readback take place on its own thread.
         mImageReader = ImageReader.newInstance(mCaptureFormat.getWidth(),
-                mCaptureFormat.getHeight(), mCaptureFormat.getPixelFormat(), 2 /* maxImages */);
+                mCaptureFormat.getHeight(), mCaptureFormat.getPixelFormat(), PREVIEW_MAX_IMAGES);
         final CrPreviewReaderListener imageReaderListener = new CrPreviewReaderListener();
         mImageReader.setOnImageAvailableListener(imageReaderListener, mCameraThreadHandler);
 
@@ -41,6 +41,11 @@ import org.chromium.base.compat.ApiHelperForM;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -508,7 +513,7 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
         @Override
         public void onAvailable(Network network) {
             if (mRegistered) {
-                connectionTypeChanged();
+                scheduleConnectionTypeChanged();
             }
         }
 
@@ -605,12 +610,12 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
             runOnThread(new Runnable() {
                 @Override
                 public void run() {
-                    mObserver.onNetworkConnect(netId, connectionType);
+                    notifyNetworkConnect(netId, connectionType);
                     if (makeVpnDefault) {
                         // Make VPN the default network.
                         mObserver.onConnectionTypeChanged(connectionType);
                         // Purge all other networks as they're inaccessible to Chrome now.
-                        mObserver.purgeActiveNetworkList(new long[] {netId});
+                        purgeActiveNetworkList(new long[] {netId});
                     }
                 }
             });
@@ -629,7 +634,7 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
             runOnThread(new Runnable() {
                 @Override
                 public void run() {
-                    mObserver.onNetworkConnect(netId, connectionType);
+                    notifyNetworkConnect(netId, connectionType);
                 }
             });
         }
@@ -656,7 +661,7 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
             runOnThread(new Runnable() {
                 @Override
                 public void run() {
-                    mObserver.onNetworkDisconnect(networkToNetId(network));
+                    notifyNetworkDisconnect(networkToNetId(network));
                 }
             });
             // If the VPN is going away, inform observer that other networks that were previously
@@ -757,6 +762,24 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
     // network-specific callbacks (e.g. Observer.onNetwork*() ) will be issued.
     private boolean mRegisterNetworkCallbackFailed;
 
+    // Delay used to coalesce bursts of default network changes, e.g. from a flapping network, into
+    // a single query of the network state.
+    private static final int CONNECTION_TYPE_SETTLE_DELAY_MS = 100;
+    private final Runnable mConnectionTypeChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mConnectionTypeChangePending = false;
+            if (mRegistered) connectionTypeChanged();
+        }
+    };
+    // Whether mConnectionTypeChangedRunnable is posted.
+    private boolean mConnectionTypeChangePending;
+    // Connection types of the networks last reported to mObserver as connected, by net ID. Only
+    // accessed on the thread this object lives on. Used to drop repeated identical reports, e.g.
+    // from onCapabilitiesChanged() bursts that don't change the connection type.
+    private final Map<Long, Integer> mConnectedNetworks = new HashMap<>();
+    private int mSuppressedNetworkNotificationCount;
+
     /**
      * Observer interface by which observer is notified of network changes.
      */
@@ -852,6 +875,52 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Recalculates the network state once the current burst of changes has settled.
+     */
+    private void scheduleConnectionTypeChanged() {
+        assertOnThread();
+        if (mConnectionTypeChangePending) return;
+        mConnectionTypeChangePending = true;
+        mHandler.postDelayed(mConnectionTypeChangedRunnable, CONNECTION_TYPE_SETTLE_DELAY_MS);
+    }
+
+    private void notifyNetworkConnect(long netId, @ConnectionType int connectionType) {
+        assertOnThread();
+        Integer previousConnectionType = mConnectedNetworks.put(netId, connectionType);
+        if (previousConnectionType != null && previousConnectionType == connectionType) {
+            mSuppressedNetworkNotificationCount++;
+            return;
+        }
+        mObserver.onNetworkConnect(netId, connectionType);
+    }
+
+    private void notifyNetworkDisconnect(long netId) {
+        assertOnThread();
+        mConnectedNetworks.remove(netId);
+        mObserver.onNetworkDisconnect(netId);
+    }
+
+    private void purgeActiveNetworkList(long[] activeNetIds) {
+        assertOnThread();
+        Set<Long> activeNetIdSet = new HashSet<>();
+        for (long netId : activeNetIds) activeNetIdSet.add(netId);
+        Iterator<Long> iterator = mConnectedNetworks.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!activeNetIdSet.contains(iterator.next())) iterator.remove();
+        }
+        mObserver.purgeActiveNetworkList(activeNetIds);
+    }
+
+    /**
+     * Returns the number of network notifications that were not sent to the observer because
+     * they repeated the previous one.
+     */
+    @VisibleForTesting
+    int getSuppressedNetworkNotificationCountForTesting() {
+        return mSuppressedNetworkNotificationCount;
+    }
+
     private void runOnThread(Runnable r) {
         if (onThread()) {
             r.run();
@@ -945,7 +1014,7 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
                 for (int i = 0; i < networks.length; i++) {
                     netIds[i] = networkToNetId(networks[i]);
                 }
-                mObserver.purgeActiveNetworkList(netIds);
+                purgeActiveNetworkList(netIds);
             }
         }
     }
@@ -957,6 +1026,11 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
         assertOnThread();
         if (!mRegistered) return;
         mRegistered = false;
+        mHandler.removeCallbacks(mConnectionTypeChangedRunnable);
+        mConnectionTypeChangePending = false;
+        // Networks may connect and disconnect while unregistered, so report them all again once
+        // registered.
+        mConnectedNetworks.clear();
         if (mNetworkCallback != null) {
             mConnectivityManagerDelegate.unregisterNetworkCallback(mNetworkCallback);
         }
@@ -1109,7 +1183,7 @@ public class NetworkChangeNotifierAutoDetect extends BroadcastReceiver {
                     mIgnoreNextBroadcast = false;
                     return;
                 }
-                connectionTypeChanged();
+                scheduleConnectionTypeChanged();
             }
         });
     }
@@ -23,6 +23,8 @@ import org.chromium.base.metrics.RecordHistogram;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -38,7 +40,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.net.ssl.TrustManager;
@@ -139,7 +143,7 @@ public class X509Util {
         }
     }
 
-    private static CertificateFactory sCertificateFactory;
+    private static volatile CertificateFactory sCertificateFactory;
 
     private static final String OID_TLS_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
     private static final String OID_ANY_EKU = "2.5.29.37.0";
@@ -152,7 +156,7 @@ public class X509Util {
     /**
      * Trust manager backed up by the read-only system certificate store.
      */
-    private static X509TrustManagerImplementation sDefaultTrustManager;
+    private static volatile X509TrustManagerImplementation sDefaultTrustManager;
 
     /**
      * BroadcastReceiver that listens to change in the system keystore to invalidate certificate
@@ -164,7 +168,7 @@ public class X509Util {
      * Trust manager backed up by a custom certificate store. We need such manager to plant test
      * root CA to the trust store in testing.
      */
-    private static X509TrustManagerImplementation sTestTrustManager;
+    private static volatile X509TrustManagerImplementation sTestTrustManager;
     private static KeyStore sTestKeyStore;
 
     /**
@@ -195,10 +199,69 @@ public class X509Util {
     private static boolean sLoadedSystemKeyStore;
 
     /**
-     * Lock object used to synchronize all calls that modify or depend on the trust managers.
+     * Lock object used to synchronize all calls that modify the trust managers or depend on the
+     * key stores. The trust managers themselves are replaced rather than modified, so they can be
+     * read without it.
      */
     private static final Object sLock = new Object();
 
+    /**
+     * True once the trust managers and certificate factory are initialized, so that callers do not
+     * need to take |sLock| to check it.
+     */
+    private static volatile boolean sInitialized;
+
+    /**
+     * Incremented under |sLock| whenever a trust manager is replaced. Verification results
+     * computed with older trust managers are not reused.
+     */
+    private static volatile int sTrustGeneration;
+
+    /** How long a successful verification of a certificate chain is reused. */
+    private static final long VERIFICATION_CACHE_TTL_MS = 5 * 60 * 1000;
+
+    /** Maximum number of verification results and parsed certificates to keep. */
+    private static final int MAX_CACHE_ENTRIES = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** A successful verification result, valid until it expires or the trust store changes. */
+    private static final class CachedVerification {
+        final AndroidCertVerifyResult mResult;
+        final long mExpirationTimeMs;
+        final int mTrustGeneration;
+
+        CachedVerification(
+                AndroidCertVerifyResult result, long expirationTimeMs, int trustGeneration) {
+            mResult = result;
+            mExpirationTimeMs = expirationTimeMs;
+            mTrustGeneration = trustGeneration;
+        }
+    }
+
+    /**
+     * Successful verifications keyed by a hash of the certificate chain, host and auth type, so
+     * that connections to the same server do not have to verify the chain again. Guarded by its
+     * own monitor.
+     */
+    private static final Map<ByteBuffer, CachedVerification> sVerificationCache =
+            createLruMap();
+
+    /**
+     * Certificates parsed by {@link #verifyServerCertificates}, keyed by their DER encoding, as
+     * the same intermediates are sent by many servers. Guarded by its own monitor.
+     */
+    private static final Map<ByteBuffer, X509Certificate> sCertificateCache = createLruMap();
+
+    private static <V> Map<ByteBuffer, V> createLruMap() {
+        return new LinkedHashMap<ByteBuffer, V>(MAX_CACHE_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, V> eldest) {
+                return size() > MAX_CACHE_ENTRIES;
+            }
+        };
+    }
+
     /**
      * Allow disabling recording histograms for the certificate changes. Java unit tests do not load
      * native libraries which prevent this from succeeding.
@@ -210,6 +273,7 @@ public class X509Util {
      */
     private static void ensureInitialized() throws CertificateException,
             KeyStoreException, NoSuchAlgorithmException {
+        if (sInitialized) return;
         synchronized (sLock) {
             ensureInitializedLocked();
         }
@@ -282,6 +346,8 @@ public class X509Util {
             }
             ContextUtils.getApplicationContext().registerReceiver(sTrustStorageListener, filter);
         }
+        // Keep retrying on each call until a trust manager could be created.
+        sInitialized = sDefaultTrustManager != null && sTestTrustManager != null;
     }
 
     /**
@@ -322,6 +388,7 @@ public class X509Util {
         assert Thread.holdsLock(sLock);
 
         sTestTrustManager = X509Util.createTrustManager(sTestKeyStore);
+        invalidateVerificationCacheLocked();
     }
 
     /**
@@ -330,13 +397,103 @@ public class X509Util {
     private static void reloadDefaultTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException, CertificateException {
         synchronized (sLock) {
-            sDefaultTrustManager = null;
+            // Replace the trust manager rather than clearing it first, so that verifications
+            // running without the lock never observe it missing.
+            sDefaultTrustManager = X509Util.createTrustManager(null);
             sSystemTrustAnchorCache = null;
+            invalidateVerificationCacheLocked();
             ensureInitializedLocked();
         }
         nativeNotifyKeyChainChanged();
     }
 
+    /**
+     * Drops all cached verification results. Must be called with |sLock| held after a trust
+     * manager is replaced.
+     */
+    private static void invalidateVerificationCacheLocked() {
+        assert Thread.holdsLock(sLock);
+
+        sTrustGeneration++;
+        synchronized (sVerificationCache) {
+            sVerificationCache.clear();
+        }
+    }
+
+    /**
+     * Returns the cache key for verifying |certChain| for |host| with |authType|.
+     */
+    private static ByteBuffer getVerificationCacheKey(byte[][] certChain, String authType,
+            String host) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer length = ByteBuffer.allocate(4);
+        for (byte[] cert : certChain) {
+            // Prefix each certificate with its length so that the chain cannot be ambiguous.
+            int certLength = cert == null ? -1 : cert.length;
+            length.clear();
+            digest.update(length.putInt(certLength).array());
+            if (cert != null) digest.update(cert);
+        }
+        digest.update((byte) 0);
+        digest.update(String.valueOf(authType).getBytes(UTF_8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(host).getBytes(UTF_8));
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /**
+     * Returns the cached result for the verification with |key|, or null if there is none that is
+     * still valid.
+     */
+    private static AndroidCertVerifyResult getCachedVerification(ByteBuffer key) {
+        synchronized (sVerificationCache) {
+            CachedVerification cached = sVerificationCache.get(key);
+            if (cached == null) return null;
+            if (cached.mTrustGeneration != sTrustGeneration
+                    || System.currentTimeMillis() >= cached.mExpirationTimeMs) {
+                sVerificationCache.remove(key);
+                return null;
+            }
+            return cached.mResult;
+        }
+    }
+
+    /**
+     * Caches a successful verification result. It expires after |VERIFICATION_CACHE_TTL_MS|, or
+     * earlier if a certificate of the verified chain expires before then.
+     */
+    private static void cacheVerification(ByteBuffer key, AndroidCertVerifyResult result,
+            List<X509Certificate> verifiedChain, int trustGeneration) {
+        long expirationTimeMs = System.currentTimeMillis() + VERIFICATION_CACHE_TTL_MS;
+        for (X509Certificate certificate : verifiedChain) {
+            expirationTimeMs = Math.min(expirationTimeMs, certificate.getNotAfter().getTime());
+        }
+        synchronized (sVerificationCache) {
+            // Don't cache a result computed with trust managers that have been replaced since.
+            if (trustGeneration != sTrustGeneration) return;
+            sVerificationCache.put(
+                    key, new CachedVerification(result, expirationTimeMs, trustGeneration));
+        }
+    }
+
+    /**
+     * Converts a DER encoded certificate to an X509Certificate, reusing a previously parsed
+     * instance of the same certificate if there is one.
+     */
+    private static X509Certificate getOrCreateCertificate(byte[] derBytes)
+            throws CertificateException, KeyStoreException, NoSuchAlgorithmException {
+        ByteBuffer key = ByteBuffer.wrap(derBytes);
+        synchronized (sCertificateCache) {
+            X509Certificate certificate = sCertificateCache.get(key);
+            if (certificate != null) return certificate;
+        }
+        X509Certificate certificate = createCertificateFromBytes(derBytes);
+        synchronized (sCertificateCache) {
+            sCertificateCache.put(key, certificate);
+        }
+        return certificate;
+    }
+
     /**
      * Convert a DER encoded certificate to an X509Certificate.
      */
@@ -493,15 +650,21 @@ public class X509Util {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.FAILED);
         }
 
+        ByteBuffer cacheKey = getVerificationCacheKey(certChain, authType, host);
+        AndroidCertVerifyResult cachedResult = getCachedVerification(cacheKey);
+        if (cachedResult != null) return cachedResult;
+        // Read before the trust managers, so that a concurrent reload prevents caching the result.
+        int trustGeneration = sTrustGeneration;
+
         List<X509Certificate> serverCertificatesList = new ArrayList<X509Certificate>();
         try {
-            serverCertificatesList.add(createCertificateFromBytes(certChain[0]));
+            serverCertificatesList.add(getOrCreateCertificate(certChain[0]));
         } catch (CertificateException e) {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.UNABLE_TO_PARSE);
         }
         for (int i = 1; i < certChain.length; ++i) {
             try {
-                serverCertificatesList.add(createCertificateFromBytes(certChain[i]));
+                serverCertificatesList.add(getOrCreateCertificate(certChain[i]));
             } catch (CertificateException e) {
                 Log.w(TAG, "intermediate " + i + " failed parsing");
             }
@@ -527,39 +690,45 @@ public class X509Util {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.FAILED);
         }
 
-        synchronized (sLock) {
-            // If no trust manager was found, fail without crashing on the null pointer.
-            if (sDefaultTrustManager == null) {
-                return new AndroidCertVerifyResult(CertVerifyStatusAndroid.FAILED);
-            }
+        // The trust managers are replaced rather than modified, so concurrent verifications can
+        // use them without holding |sLock|.
+        X509TrustManagerImplementation defaultTrustManager = sDefaultTrustManager;
+        X509TrustManagerImplementation testTrustManager = sTestTrustManager;
+        // If no trust manager was found, fail without crashing on the null pointer.
+        if (defaultTrustManager == null) {
+            return new AndroidCertVerifyResult(CertVerifyStatusAndroid.FAILED);
+        }
 
-            List<X509Certificate> verifiedChain;
+        List<X509Certificate> verifiedChain;
+        try {
+            verifiedChain = defaultTrustManager.checkServerTrusted(serverCertificates,
+                                                                   authType, host);
+        } catch (CertificateException eDefaultManager) {
             try {
-                verifiedChain = sDefaultTrustManager.checkServerTrusted(serverCertificates,
-                                                                        authType, host);
-            } catch (CertificateException eDefaultManager) {
-                try {
-                    verifiedChain = sTestTrustManager.checkServerTrusted(serverCertificates,
-                                                                         authType, host);
-                } catch (CertificateException eTestManager) {
-                    // Neither of the trust managers confirms the validity of the certificate chain,
-                    // log the error message returned by the system trust manager.
-                    Log.i(TAG, "Failed to validate the certificate chain, error: "
-                            + eDefaultManager.getMessage());
-                    return new AndroidCertVerifyResult(
-                            CertVerifyStatusAndroid.NO_TRUSTED_ROOT);
-                }
+                verifiedChain = testTrustManager.checkServerTrusted(serverCertificates,
+                                                                    authType, host);
+            } catch (CertificateException eTestManager) {
+                // Neither of the trust managers confirms the validity of the certificate chain,
+                // log the error message returned by the system trust manager.
+                Log.i(TAG, "Failed to validate the certificate chain, error: "
+                        + eDefaultManager.getMessage());
+                return new AndroidCertVerifyResult(
+                        CertVerifyStatusAndroid.NO_TRUSTED_ROOT);
             }
+        }
 
-            boolean isIssuedByKnownRoot = false;
-            if (verifiedChain.size() > 0) {
-                X509Certificate root = verifiedChain.get(verifiedChain.size() - 1);
+        boolean isIssuedByKnownRoot = false;
+        if (verifiedChain.size() > 0) {
+            X509Certificate root = verifiedChain.get(verifiedChain.size() - 1);
+            synchronized (sLock) {
                 isIssuedByKnownRoot = isKnownRoot(root);
             }
-
-            return new AndroidCertVerifyResult(CertVerifyStatusAndroid.OK,
-                                               isIssuedByKnownRoot, verifiedChain);
         }
+
+        AndroidCertVerifyResult result = new AndroidCertVerifyResult(
+                CertVerifyStatusAndroid.OK, isIssuedByKnownRoot, verifiedChain);
+        cacheVerification(cacheKey, result, verifiedChain, trustGeneration);
+        return result;
     }
 
     public static void setDisableNativeCodeForTest(boolean disabled) {
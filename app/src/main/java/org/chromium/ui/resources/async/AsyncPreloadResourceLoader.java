@@ -7,14 +7,18 @@ package org.chromium.ui.resources.async;
 import android.util.SparseArray;
 
 import org.chromium.base.TraceEvent;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.base.task.AsyncTask;
 import org.chromium.ui.resources.Resource;
 import org.chromium.ui.resources.ResourceLoader;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.ExecutionException;
 
 /**
- * Handles loading Android resources from disk asynchronously and synchronously.
+ * Handles loading Android resources from disk asynchronously and synchronously.  Up to
+ * {@link #MAX_CONCURRENT_LOADS} resources are decoded in parallel; other preloads wait in a queue
+ * and are started in the order they were requested.
  */
 public class AsyncPreloadResourceLoader extends ResourceLoader {
     /**
@@ -32,9 +36,19 @@ public class AsyncPreloadResourceLoader extends ResourceLoader {
         Resource create(int resId);
     }
 
+    /** The maximum number of resources that are decoded in the background at the same time. */
+    @VisibleForTesting
+    static final int MAX_CONCURRENT_LOADS = 2;
+
+    // Loads that were handed to the executor, keyed by resource id.
     private final SparseArray<AsyncLoadTask> mOutstandingLoads = new SparseArray<AsyncLoadTask>();
+    // Ids of preloads that are waiting for a free slot, in request order.
+    private final ArrayDeque<Integer> mQueuedLoads = new ArrayDeque<Integer>();
     private final ResourceCreator mCreator;
 
+    private int mSynchronousFallbackCount;
+    private int mBlockingWaitCount;
+
     /**
      * Creates a {@link AsyncPreloadResourceLoader}.
      * @param resourceType The resource type this loader is responsible for loading.
@@ -53,7 +67,8 @@ public class AsyncPreloadResourceLoader extends ResourceLoader {
      * Loads a resource synchronously.  This will still call the {@link ResourceLoaderCallback} on
      * completion.  If the resource is currently being loaded asynchronously this will wait for that
      * task to complete before returning.  If the resource is queued to be read asynchronously later
-     * this will cancel that request.
+     * it is promoted out of the queue and loaded right away instead of waiting for the loads that
+     * were requested before it.
      * @param resId The Android resource id to load.
      */
     @Override
@@ -62,30 +77,62 @@ public class AsyncPreloadResourceLoader extends ResourceLoader {
 
         if (task != null) {
             if (!task.cancel(false)) {
+                mBlockingWaitCount++;
                 try {
+                    TraceEvent.begin("AsyncPreloadResourceLoader.waitForResource");
                     registerResource(task.get(), resId);
-                } catch (InterruptedException e) {
-                    notifyLoadFinished(resId, null);
-                } catch (ExecutionException e) {
-                    notifyLoadFinished(resId, null);
+                } catch (InterruptedException | ExecutionException e) {
+                    registerResource(null, resId);
+                } finally {
+                    TraceEvent.end("AsyncPreloadResourceLoader.waitForResource");
                 }
                 return;
             }
+            mSynchronousFallbackCount++;
+        } else if (mQueuedLoads.remove(resId)) {
+            mSynchronousFallbackCount++;
         }
         registerResource(createResource(resId), resId);
     }
 
     /**
-     * Loads a resource asynchronously.  The load will be queued if other resources are currently
-     * being loaded.  The {@link ResourceLoaderCallback} will be notified on completion.
+     * Loads a resource asynchronously.  The load will be queued if {@link #MAX_CONCURRENT_LOADS}
+     * resources are currently being loaded.  Requests for a resource that is already queued or
+     * being loaded are ignored.  The {@link ResourceLoaderCallback} will be notified on completion.
      * @param resId The Android resource id to load.
      */
     @Override
     public void preloadResource(int resId) {
-        if (mOutstandingLoads.get(resId) != null) return;
-        AsyncLoadTask task = new AsyncLoadTask(resId);
-        task.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
-        mOutstandingLoads.put(resId, task);
+        if (mOutstandingLoads.get(resId) != null || mQueuedLoads.contains(resId)) return;
+        mQueuedLoads.add(resId);
+        startQueuedLoads();
+    }
+
+    /**
+     * @return The number of synchronous loads of a resource whose preload had not started yet, and
+     *         that were therefore decoded on the calling thread.
+     */
+    @VisibleForTesting
+    public int getSynchronousFallbackCount() {
+        return mSynchronousFallbackCount;
+    }
+
+    /**
+     * @return The number of synchronous loads that blocked the calling thread until a preload of
+     *         the same resource finished.
+     */
+    @VisibleForTesting
+    public int getBlockingWaitCount() {
+        return mBlockingWaitCount;
+    }
+
+    private void startQueuedLoads() {
+        while (mOutstandingLoads.size() < MAX_CONCURRENT_LOADS && !mQueuedLoads.isEmpty()) {
+            int resId = mQueuedLoads.poll();
+            AsyncLoadTask task = new AsyncLoadTask(resId);
+            mOutstandingLoads.put(resId, task);
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
     }
 
     private Resource createResource(int resId) {
@@ -101,6 +148,7 @@ public class AsyncPreloadResourceLoader extends ResourceLoader {
         notifyLoadFinished(resourceId, resource);
         if (resource != null) resource.getBitmap().recycle();
         mOutstandingLoads.remove(resourceId);
+        startQueuedLoads();
     }
 
     private class AsyncLoadTask extends AsyncTask<Resource> {
@@ -0,0 +1,144 @@
+// Copyright 2019 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.ui.resources.dynamics;
+
+import android.graphics.Rect;
+
+/**
+ * The damaged area of a {@link ViewResourceAdapter}, kept as a small set of rectangles so that
+ * invalidations in distant parts of a view do not cause everything in between to be redrawn.
+ * Rectangles are only merged when they overlap, when their union costs no more pixels than drawing
+ * them separately, or when more than {@link #MAX_RECTS} would be needed.
+ */
+class DirtyRegion {
+    /** The maximum number of rectangles tracked before the cheapest pair is merged. */
+    static final int MAX_RECTS = 4;
+
+    // One extra slot holds a new rectangle until it is merged into the others.
+    private final Rect[] mRects = new Rect[MAX_RECTS + 1];
+    private final Rect mBounds = new Rect();
+    private int mCount;
+
+    DirtyRegion() {
+        for (int i = 0; i < mRects.length; i++) mRects[i] = new Rect();
+    }
+
+    /** @return Whether nothing is dirty. */
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /** @return The number of rectangles in the region, at most {@link #MAX_RECTS}. */
+    int getRectCount() {
+        return mCount;
+    }
+
+    /**
+     * @param index The index of the rectangle, in [0, {@link #getRectCount()}).
+     * @return The rectangle, which must not be modified.
+     */
+    Rect getRect(int index) {
+        assert index >= 0 && index < mCount;
+        return mRects[index];
+    }
+
+    /** @return The bounds of all the rectangles, which must not be modified. */
+    Rect getBounds() {
+        return mBounds;
+    }
+
+    /** Marks nothing as dirty. */
+    void setEmpty() {
+        mCount = 0;
+        mBounds.setEmpty();
+    }
+
+    /**
+     * Replaces the region with a single rectangle.
+     * @param rect The new dirty area.
+     */
+    void set(Rect rect) {
+        setEmpty();
+        add(rect);
+    }
+
+    /**
+     * Adds a rectangle to the region.
+     * @param rect The area to mark as dirty.
+     */
+    void add(Rect rect) {
+        if (rect.isEmpty()) return;
+        if (mBounds.isEmpty()) {
+            mBounds.set(rect);
+        } else {
+            mBounds.union(rect);
+        }
+
+        for (int i = 0; i < mCount; i++) {
+            if (mRects[i].contains(rect)) return;
+        }
+        mRects[mCount++].set(rect);
+        absorbInto(mCount - 1);
+
+        while (mCount > MAX_RECTS) {
+            int bestFirst = 0;
+            int bestSecond = 1;
+            long bestCost = Long.MAX_VALUE;
+            for (int i = 0; i < mCount; i++) {
+                for (int j = i + 1; j < mCount; j++) {
+                    long cost = getMergeCost(mRects[i], mRects[j]);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestFirst = i;
+                        bestSecond = j;
+                    }
+                }
+            }
+            mRects[bestFirst].union(mRects[bestSecond]);
+            removeAt(bestSecond);
+            absorbInto(bestFirst);
+        }
+    }
+
+    /** Merges every rectangle that should be drawn together with the one at |index| into it. */
+    private void absorbInto(int index) {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < mCount; i++) {
+                if (i == index || !shouldMerge(mRects[index], mRects[i])) continue;
+                mRects[index].union(mRects[i]);
+                removeAt(i);
+                if (i < index) index--;
+                merged = true;
+                break;
+            }
+        }
+    }
+
+    private void removeAt(int index) {
+        // Keep the preallocated Rect around for later additions.
+        Rect removed = mRects[index];
+        System.arraycopy(mRects, index + 1, mRects, index, mCount - index - 1);
+        mRects[--mCount] = removed;
+    }
+
+    /** @return Whether |a| and |b| overlap or cost no more pixels to draw as their union. */
+    private static boolean shouldMerge(Rect a, Rect b) {
+        return Rect.intersects(a, b) || getMergeCost(a, b) <= 0;
+    }
+
+    /** @return How many more pixels the union of |a| and |b| covers than |a| and |b| together. */
+    private static long getMergeCost(Rect a, Rect b) {
+        long unionWidth = Math.max(a.right, b.right) - Math.min(a.left, b.left);
+        long unionHeight = Math.max(a.bottom, b.bottom) - Math.min(a.top, b.top);
+        return unionWidth * unionHeight - getArea(a) - getArea(b);
+    }
+
+    /** @return The number of pixels covered by |rect|. */
+    static long getArea(Rect rect) {
+        return (long) rect.width() * rect.height();
+    }
+}
@@ -7,11 +7,13 @@ package org.chromium.ui.resources.dynamics;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.view.View;
 import android.view.View.OnLayoutChangeListener;
 
 import org.chromium.base.TraceEvent;
+import org.chromium.base.VisibleForTesting;
 import org.chromium.ui.resources.Resource;
 import org.chromium.ui.resources.ResourceFactory;
 import org.chromium.ui.resources.statics.NinePatchData;
@@ -21,10 +23,19 @@ import org.chromium.ui.resources.statics.NinePatchData;
  * this adapter {@link ViewResourceAdapter#invalidate(Rect)} must be called when parts of the
  * {@link View} are invalidated.  For {@link ViewGroup}s the easiest way to do this is to override
  * {@link View#invalidateChildInParent(int[], Rect)}.
+ *
+ * Invalidations are tracked as a few separate rectangles, and only those are redrawn on capture.
  */
 public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListener {
     private final View mView;
+    private final DirtyRegion mDirtyRegion = new DirtyRegion();
+    // The bounds of |mDirtyRegion|, as handed to subclasses.
     private final Rect mDirtyRect = new Rect();
+    private final Rect mTempRect = new Rect();
+    private final Path mClipPath = new Path();
+
+    private long mLastCapturedPixelCount;
+    private long mTotalCapturedPixelCount;
 
     private Bitmap mBitmap;
     private Rect mBitmapSize = new Rect();
@@ -52,18 +63,22 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
         if (validateBitmap()) {
             Canvas canvas = new Canvas(mBitmap);
 
-            onCaptureStart(canvas, mDirtyRect.isEmpty() ? null : mDirtyRect);
+            Rect dirtyRect = getDirtyRect();
+            onCaptureStart(canvas, dirtyRect.isEmpty() ? null : dirtyRect);
 
-            if (!mDirtyRect.isEmpty()) canvas.clipRect(mDirtyRect);
+            // Subclasses may grow the dirty rect, in which case all of it is redrawn.
+            if (!dirtyRect.equals(mDirtyRegion.getBounds())) mDirtyRegion.set(dirtyRect);
+            if (!mDirtyRegion.isEmpty()) clipToDirtyRegion(canvas);
             capture(canvas);
 
             onCaptureEnd();
+            recordCapturedPixels();
         } else {
             assert mBitmap.getWidth() == 1 && mBitmap.getHeight() == 1;
             mBitmap.setPixel(0, 0, Color.TRANSPARENT);
         }
 
-        mDirtyRect.setEmpty();
+        mDirtyRegion.setEmpty();
         TraceEvent.end("ViewResourceAdapter:getBitmap");
         return mBitmap;
     }
@@ -88,9 +103,9 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
 
     @Override
     public boolean isDirty() {
-        if (mBitmap == null) mDirtyRect.set(0, 0, mView.getWidth(), mView.getHeight());
+        if (mBitmap == null) invalidate(null);
 
-        return !mDirtyRect.isEmpty();
+        return !mDirtyRegion.isEmpty();
     }
 
     @Override
@@ -101,7 +116,10 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
         final int oldWidth = oldRight - oldLeft;
         final int oldHeight = oldBottom - oldTop;
 
-        if (width != oldWidth || height != oldHeight) mDirtyRect.set(0, 0, width, height);
+        if (width != oldWidth || height != oldHeight) {
+            mTempRect.set(0, 0, width, height);
+            mDirtyRegion.set(mTempRect);
+        }
     }
 
     /**
@@ -111,9 +129,10 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
      */
     public void invalidate(Rect dirtyRect) {
         if (dirtyRect == null) {
-            mDirtyRect.set(0, 0, mView.getWidth(), mView.getHeight());
+            mTempRect.set(0, 0, mView.getWidth(), mView.getHeight());
+            mDirtyRegion.set(mTempRect);
         } else {
-            mDirtyRect.union(dirtyRect);
+            mDirtyRegion.add(dirtyRect);
         }
     }
 
@@ -125,12 +144,26 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
     }
 
     /**
-     * @return Dirty rect that will be drawn on capture.
+     * @return Dirty rect that will be drawn on capture. This is the bounds of all the invalidated
+     *         regions, of which only the invalidated parts are redrawn.
      */
     protected Rect getDirtyRect() {
+        mDirtyRect.set(mDirtyRegion.getBounds());
         return mDirtyRect;
     }
 
+    /** @return The number of pixels redrawn by the last capture. */
+    @VisibleForTesting
+    public long getLastCapturedPixelCount() {
+        return mLastCapturedPixelCount;
+    }
+
+    /** @return The number of pixels redrawn by all the captures so far. */
+    @VisibleForTesting
+    public long getTotalCapturedPixelCount() {
+        return mTotalCapturedPixelCount;
+    }
+
     /**
      * Called before {@link #capture(Canvas)} is called.
      * @param canvas    The {@link Canvas} that will be drawn to.
@@ -153,6 +186,37 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
     protected void onCaptureEnd() {
     }
 
+    /**
+     * Clips a {@link Canvas} to the parts of the dirty rect that will be redrawn. Subclasses that
+     * draw in {@link #onCaptureStart(Canvas, Rect)} should use this, so that they do not touch
+     * pixels that are not redrawn afterwards.
+     * @param canvas The {@link Canvas} to clip.
+     */
+    protected void clipToDirtyRegion(Canvas canvas) {
+        if (mDirtyRegion.getRectCount() == 1) {
+            canvas.clipRect(mDirtyRegion.getRect(0));
+            return;
+        }
+        mClipPath.rewind();
+        for (int i = 0; i < mDirtyRegion.getRectCount(); i++) {
+            Rect rect = mDirtyRegion.getRect(i);
+            mClipPath.addRect(rect.left, rect.top, rect.right, rect.bottom, Path.Direction.CW);
+        }
+        canvas.clipPath(mClipPath);
+    }
+
+    private void recordCapturedPixels() {
+        long pixels = 0;
+        for (int i = 0; i < mDirtyRegion.getRectCount(); i++) {
+            mTempRect.set(mDirtyRegion.getRect(i));
+            if (mTempRect.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight())) {
+                pixels += DirtyRegion.getArea(mTempRect);
+            }
+        }
+        mLastCapturedPixelCount = pixels;
+        mTotalCapturedPixelCount += pixels;
+    }
+
     /**
      * @return Whether |mBitmap| is corresponding to |mView| or not.
      */
@@ -173,7 +237,8 @@ public class ViewResourceAdapter implements DynamicResource, OnLayoutChangeListe
         if (mBitmap == null) {
             mBitmap = Bitmap.createBitmap(viewWidth, viewHeight, Bitmap.Config.ARGB_8888);
             mBitmap.setHasAlpha(true);
-            mDirtyRect.set(0, 0, viewWidth, viewHeight);
+            mTempRect.set(0, 0, viewWidth, viewHeight);
+            mDirtyRegion.set(mTempRect);
             mBitmapSize.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
         }
 